@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2017-2017 Globo.com
+ * All rights reserved.
+ *
+ * This source is subject to the Apache License, Version 2.0.
+ * Please see the LICENSE file for more information.
+ *
+ * Authors: See AUTHORS file
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.galeb.statsd;
+
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Sender-side cost of packing one event into the packet buffer, driving
+ * Handler.onEvent directly with a pre-encoded event. A datagram is sent
+ * whenever the buffer fills up, so the send syscall is amortized over a
+ * packet's worth of lines as it is in the disruptor thread.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HandlerBenchmark {
+
+    @Param({ "false", "true" })
+    public boolean tagged;
+
+    @Param({ "false", "true" })
+    public boolean directSend;
+
+    private DatagramSocket sink;
+    private NonBlockingStatsDClient client;
+    private NonBlockingStatsDClient.Handler handler;
+    private NonBlockingStatsDClient.Event event;
+    private long sequence;
+
+    @Setup
+    public void setUp() throws Exception {
+        sink = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        client = NonBlockingStatsDClient.builder()
+                .prefix("bench")
+                .hostname("127.0.0.1")
+                .port(sink.getLocalPort())
+                .directSend(directSend)
+                .build();
+        handler = client.new Handler();
+        event = new NonBlockingStatsDClient.Event();
+        event.put("bench.response.time:123|h");
+        if (tagged) {
+            event.put("|#method:GET,status:200,pool:backend");
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        client.stop();
+        sink.close();
+    }
+
+    @Benchmark
+    public void onEvent() throws Exception {
+        handler.onEvent(event, sequence++, false);
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2017-2017 Globo.com
+ * All rights reserved.
+ *
+ * This source is subject to the Apache License, Version 2.0.
+ * Please see the LICENSE file for more information.
+ *
+ * Authors: See AUTHORS file
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.galeb.statsd;
+
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Producer-side cost of publishing a metric, from the caller's thread into the
+ * ring. The sender drains to a local socket nobody reads, so a full ring shows
+ * up as drops rather than back pressure, like in production.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public abstract class PublishBenchmark {
+
+    private static final String[] TAGS = { "pool:backend", "status:200", "method:GET" };
+    private static final String[] NO_TAGS = {};
+
+    @Param({ "false", "true" })
+    public boolean tagged;
+
+    @Param({ "false", "true" })
+    public boolean striped;
+
+    @Param({ "false", "true" })
+    public boolean tagCache;
+
+    private DatagramSocket sink;
+    private NonBlockingStatsDClient client;
+    private String[] tags;
+
+    @Setup
+    public void setUp() throws Exception {
+        sink = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        NonBlockingStatsDClient.Builder builder = NonBlockingStatsDClient.builder()
+                .prefix("bench")
+                .hostname("127.0.0.1")
+                .port(sink.getLocalPort());
+        if (striped) {
+            builder.stripedProducers(16, 5, TimeUnit.MILLISECONDS);
+        }
+        if (tagCache) {
+            builder.tagCache(1024);
+        }
+        client = builder.build();
+        tags = tagged ? TAGS : NO_TAGS;
+    }
+
+    @TearDown
+    public void tearDown() {
+        client.stop();
+        sink.close();
+    }
+
+    @Benchmark
+    public void count() {
+        client.count("requests", 1, tags);
+    }
+
+    @Benchmark
+    public void gauge() {
+        client.recordGaugeValue("pool.size", 42.5, tags);
+    }
+
+    @Benchmark
+    public void histogram() {
+        client.recordHistogramValue("response.time", 123, tags);
+    }
+
+    @Threads(1)
+    public static class OneProducer extends PublishBenchmark {
+    }
+
+    @Threads(4)
+    public static class FourProducers extends PublishBenchmark {
+    }
+
+    @Threads(16)
+    public static class SixteenProducers extends PublishBenchmark {
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2017-2017 Globo.com
+ * All rights reserved.
+ *
+ * This source is subject to the Apache License, Version 2.0.
+ * Please see the LICENSE file for more information.
+ *
+ * Authors: See AUTHORS file
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.galeb.statsd;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Looks up the address of a statsd host. Plug one in with
+ * {@link NonBlockingStatsDClient.Builder#resolver(AddressResolver)} to use
+ * another name service, or fixed addresses in tests.
+ */
+@FunctionalInterface
+public interface AddressResolver {
+
+    /** The JVM's resolver, subject to its {@code networkaddress.cache.ttl}. */
+    AddressResolver SYSTEM = InetAddress::getByName;
+
+    InetAddress resolve(String hostname) throws UnknownHostException;
+
+    /**
+     * Looks {@code hostname} up again for a transport's
+     * {@link Transport#refresh(AddressResolver)}: returns the address to
+     * switch to, or null when {@code current} is still right. Blocks for as
+     * long as the lookup does; on failure it throws and the caller keeps
+     * {@code current}.
+     */
+    static InetSocketAddress refresh(AddressResolver resolver, String hostname, int port, InetSocketAddress current)
+            throws UnknownHostException {
+        final InetAddress latest = resolver.resolve(hostname);
+        if (current.isUnresolved() || !latest.equals(current.getAddress())) {
+            return new InetSocketAddress(latest, port);
+        }
+        return null;
+    }
+
+}
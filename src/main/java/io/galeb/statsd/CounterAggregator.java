@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2017-2017 Globo.com
+ * All rights reserved.
+ *
+ * This source is subject to the Apache License, Version 2.0.
+ * Please see the LICENSE file for more information.
+ *
+ * Authors: See AUTHORS file
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.galeb.statsd;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ObjLongConsumer;
+
+/*
+ * Sums counter deltas per aspect and tags between flushes. Keys are never
+ * evicted: removing an idle adder would race with a producer that already
+ * looked it up, so the table is bounded by the metric cardinality instead.
+ */
+final class CounterAggregator {
+
+    private final ConcurrentHashMap<MetricKey, Sum> counters = new ConcurrentHashMap<>();
+
+    /*
+     * A sampled delta stands for delta / sampleRate. Those are summed as
+     * doubles and only the total is rounded, keeping the fraction for the
+     * next flush, so rounding every sample does not bias the sum.
+     */
+    void add(String aspect, long delta, double sampleRate, String[] tags) {
+        Sum sum = sum(new MetricKey(aspect, tags));
+        if (sampleRate < 1) {
+            sum.scaled.add(delta / sampleRate);
+        } else {
+            sum.exact.add(delta);
+        }
+    }
+
+    void add(MetricKey key, long delta) {
+        sum(key).exact.add(delta);
+    }
+
+    void flush(ObjLongConsumer<MetricKey> consumer) {
+        for (Map.Entry<MetricKey, Sum> entry : counters.entrySet()) {
+            long total = entry.getValue().sumThenReset();
+            if (total != 0) {
+                consumer.accept(entry.getKey(), total);
+            }
+        }
+    }
+
+    private Sum sum(MetricKey key) {
+        Sum sum = counters.get(key);
+        if (sum == null) {
+            sum = counters.computeIfAbsent(key.copy(), k -> new Sum());
+        }
+        return sum;
+    }
+
+    private static final class Sum {
+
+        final LongAdder exact = new LongAdder();
+        final DoubleAdder scaled = new DoubleAdder();
+
+        long sumThenReset() {
+            final double sampled = scaled.sumThenReset();
+            final long rounded = Math.round(sampled);
+            if (sampled != rounded) {
+                scaled.add(sampled - rounded);
+            }
+            return exact.sumThenReset() + rounded;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2017-2017 Globo.com
+ * All rights reserved.
+ *
+ * This source is subject to the Apache License, Version 2.0.
+ * Please see the LICENSE file for more information.
+ *
+ * Authors: See AUTHORS file
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.galeb.statsd;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Sends each packet as one UDP datagram. With {@code connect} the channel is
+ * connected once and written to, which spares the JDK an address check per
+ * packet but surfaces ICMP errors such as PortUnreachableException while the
+ * agent is down.
+ *
+ * <p>The host name is resolved once, unless {@link #refresh(AddressResolver)}
+ * is called periodically: it looks the name up on the calling thread and
+ * hands a changed address over to the sender, which switches to it on its
+ * next send without ever blocking on a lookup.
+ */
+public final class DatagramTransport implements Transport {
+
+    private final DatagramChannel channel;
+    private final String hostname;
+    private final int port;
+    private final boolean connected;
+    private InetSocketAddress address;
+    private volatile InetSocketAddress resolved;
+
+    public DatagramTransport(String hostname, int port, boolean connect) throws IOException {
+        this(hostname, port, connect, AddressResolver.SYSTEM);
+    }
+
+    public DatagramTransport(String hostname, int port, boolean connect, AddressResolver resolver) throws IOException {
+        if (hostname == null) {
+            throw new IllegalArgumentException("hostname can't be null");
+        }
+        this.hostname = hostname;
+        this.port = port;
+        InetSocketAddress initial;
+        try {
+            initial = new InetSocketAddress(resolver.resolve(hostname), port);
+        } catch (UnknownHostException e) {
+            initial = InetSocketAddress.createUnresolved(hostname, port);
+        }
+        this.address = initial;
+        this.resolved = initial;
+        this.channel = DatagramChannel.open();
+        this.connected = connect;
+        if (connect) {
+            channel.connect(address);
+        }
+    }
+
+    @Override
+    public void refresh(AddressResolver resolver) throws UnknownHostException {
+        final InetSocketAddress latest = AddressResolver.refresh(resolver, hostname, port, resolved);
+        if (latest != null) {
+            resolved = latest;
+        }
+    }
+
+    @Override
+    public void send(ByteBuffer packet) throws IOException {
+        InetSocketAddress latest = resolved;
+        if (latest != address) {
+            if (connected) {
+                channel.disconnect();
+                channel.connect(latest);
+            }
+            address = latest;
+        }
+
+        int sizeOfBuffer = packet.remaining();
+        int sentBytes = connected ? channel.write(packet) : channel.send(packet, address);
+
+        if (sizeOfBuffer != sentBytes) {
+            throw new IOException(
+                    String.format(
+                            "Could not send entirely stat %s to host %s:%d. Only sent %d bytes out of %d bytes",
+                            packet.toString(),
+                            hostname,
+                            address.getPort(),
+                            sentBytes,
+                            sizeOfBuffer));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2017-2017 Globo.com
+ * All rights reserved.
+ *
+ * This source is subject to the Apache License, Version 2.0.
+ * Please see the LICENSE file for more information.
+ *
+ * Authors: See AUTHORS file
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.galeb.statsd;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ObjDoubleConsumer;
+import java.util.function.ObjLongConsumer;
+
+/*
+ * Keeps the last value of each gauge per aspect and tags between flushes,
+ * and sends only the gauges set since the previous flush. Setting a gauge
+ * allocates the lookup key, like CounterAggregator, and nothing else once
+ * the key is known. Keys are never evicted.
+ */
+final class GaugeAggregator {
+
+    private final ConcurrentHashMap<MetricKey, Entry> gauges = new ConcurrentHashMap<>();
+
+    void set(String aspect, long value, String[] tags) {
+        entry(new MetricKey(aspect, tags)).set(value);
+    }
+
+    void set(String aspect, double value, String[] tags) {
+        entry(new MetricKey(aspect, tags)).set(value);
+    }
+
+    void flush(ObjLongConsumer<MetricKey> longs, ObjDoubleConsumer<MetricKey> doubles) {
+        for (Map.Entry<MetricKey, Entry> gauge : gauges.entrySet()) {
+            final Entry entry = gauge.getValue();
+            if (!entry.dirty) {
+                continue;
+            }
+            /* Cleared before the read: a set that ends after it marks the entry again for the next flush */
+            entry.dirty = false;
+            long version;
+            long bits;
+            boolean isDouble;
+            do {
+                version = entry.version.get();
+                bits = entry.bits;
+                isDouble = entry.isDouble;
+            } while ((version & 1L) != 0 || entry.version.get() != version);
+            if (isDouble) {
+                doubles.accept(gauge.getKey(), Double.longBitsToDouble(bits));
+            } else {
+                longs.accept(gauge.getKey(), bits);
+            }
+        }
+    }
+
+    private Entry entry(MetricKey key) {
+        Entry entry = gauges.get(key);
+        if (entry == null) {
+            entry = gauges.computeIfAbsent(key.copy(), k -> new Entry());
+        }
+        return entry;
+    }
+
+    /*
+     * The value and its type are written together under an odd version, so
+     * the last set to finish wins whatever its type, and a flush retries
+     * rather than read a value as the other type. Each set marks the entry
+     * dirty once it is written, so a set that finishes while a flush runs is
+     * sent by the next one instead of being taken for already flushed.
+     */
+    private static final class Entry {
+
+        final AtomicLong version = new AtomicLong();
+        volatile long bits;
+        volatile boolean isDouble;
+        volatile boolean dirty;
+
+        void set(long value) {
+            write(value, false);
+        }
+
+        void set(double value) {
+            write(Double.doubleToRawLongBits(value), true);
+        }
+
+        private void write(long bits, boolean isDouble) {
+            long current;
+            while (((current = version.get()) & 1L) != 0 || !version.compareAndSet(current, current + 1)) {
+                Thread.yield();
+            }
+            this.bits = bits;
+            this.isDouble = isDouble;
+            version.set(current + 2);
+            dirty = true;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2017-2017 Globo.com
+ * All rights reserved.
+ *
+ * This source is subject to the Apache License, Version 2.0.
+ * Please see the LICENSE file for more information.
+ *
+ * Authors: See AUTHORS file
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.galeb.statsd;
+
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Consistent hash ring over a fixed list of nodes. Each node owns
+ * VIRTUAL_NODES points on the ring and a key belongs to the first point at or
+ * after its hash, so load spreads evenly and removing a node only moves the
+ * keys it owned. Hashes build on String.hashCode, which is specified, so
+ * every client process routes a key to the same node.
+ */
+final class HashRing {
+
+    static final int VIRTUAL_NODES = 160;
+
+    private final int[] points;
+    private final int[] owners;
+
+    HashRing(List<String> nodes) {
+        long[] entries = new long[nodes.size() * VIRTUAL_NODES];
+        int n = 0;
+        for (int node = 0; node < nodes.size(); node++) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                int point = mix((nodes.get(node) + '#' + i).hashCode());
+                /* Sorts by point, ties broken by node index */
+                entries[n++] = ((long) point << 32) | node;
+            }
+        }
+        Arrays.sort(entries);
+        this.points = new int[entries.length];
+        this.owners = new int[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            points[i] = (int) (entries[i] >> 32);
+            owners[i] = (int) entries[i];
+        }
+    }
+
+    /* Index of the node owning the key */
+    int owner(String key) {
+        int hash = mix(key == null ? 0 : key.hashCode());
+        int index = Arrays.binarySearch(points, hash);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return owners[index == points.length ? 0 : index];
+    }
+
+    /* Murmur3 finalizer, spreads nearby String hashes around the ring */
+    static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2017-2017 Globo.com
+ * All rights reserved.
+ *
+ * This source is subject to the Apache License, Version 2.0.
+ * Please see the LICENSE file for more information.
+ *
+ * Authors: See AUTHORS file
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.galeb.statsd;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/*
+ * Records samples per aspect and tags into a LogLinearHistogram between
+ * flushes. Like CounterAggregator, keys are kept for the lifetime of the
+ * client, so memory is bounded by cardinality times the fixed histogram size.
+ */
+final class HistogramAggregator {
+
+    private final ConcurrentHashMap<MetricKey, LogLinearHistogram> histograms = new ConcurrentHashMap<>();
+
+    void record(String aspect, double value, double sampleRate, String[] tags) {
+        histogram(new MetricKey(aspect, tags)).record(value, sampleRate);
+    }
+
+    void record(MetricKey key, double value) {
+        histogram(key).record(value);
+    }
+
+    void flush(BiConsumer<MetricKey, LogLinearHistogram.Snapshot> consumer) {
+        for (Map.Entry<MetricKey, LogLinearHistogram> entry : histograms.entrySet()) {
+            LogLinearHistogram.Snapshot snapshot = entry.getValue().snapshotAndReset();
+            if (snapshot != null) {
+                consumer.accept(entry.getKey(), snapshot);
+            }
+        }
+    }
+
+    private LogLinearHistogram histogram(MetricKey key) {
+        LogLinearHistogram histogram = histograms.get(key);
+        if (histogram == null) {
+            histogram = histograms.computeIfAbsent(key.copy(), k -> new LogLinearHistogram());
+        }
+        return histogram;
+    }
+}
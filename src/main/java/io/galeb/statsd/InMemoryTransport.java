@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2017-2017 Globo.com
+ * All rights reserved.
+ *
+ * This source is subject to the Apache License, Version 2.0.
+ * Please see the LICENSE file for more information.
+ *
+ * Authors: See AUTHORS file
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.galeb.statsd;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Keeps every packet in memory, for tests of code that records metrics.
+ */
+public final class InMemoryTransport implements Transport {
+
+    private final List<String> packets = new CopyOnWriteArrayList<>();
+
+    @Override
+    public void send(ByteBuffer packet) {
+        byte[] bytes = new byte[packet.remaining()];
+        packet.get(bytes);
+        packets.add(new String(bytes, StandardCharsets.UTF_8));
+    }
+
+    public List<String> packets() {
+        return new ArrayList<>(packets);
+    }
+
+    public List<String> lines() {
+        List<String> lines = new ArrayList<>();
+        for (String packet : packets) {
+            lines.addAll(Arrays.asList(packet.split("\n")));
+        }
+        return lines;
+    }
+
+    public void clear() {
+        packets.clear();
+    }
+
+    @Override
+    public void close() {
+    }
+}
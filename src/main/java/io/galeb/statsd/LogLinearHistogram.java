@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2017-2017 Globo.com
+ * All rights reserved.
+ *
+ * This source is subject to the Apache License, Version 2.0.
+ * Please see the LICENSE file for more information.
+ *
+ * Authors: See AUTHORS file
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.galeb.statsd;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.DoubleAccumulator;
+import java.util.concurrent.atomic.DoubleAdder;
+
+/*
+ * Fixed-memory histogram with log-linear buckets: every power of two is split
+ * into SUB_BUCKETS linear buckets, which bounds the relative error of a
+ * percentile to about 1 / (2 * SUB_BUCKETS) whatever the sample rate.
+ * Values below 2^MIN_EXPONENT (including zero and negatives) share the first
+ * bucket and values from 2^(MAX_EXPONENT + 1) on share the last one; min and
+ * max are tracked exactly. Percentiles come from the recorded samples only,
+ * while the count also estimates the samples a sample rate left out.
+ */
+final class LogLinearHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MIN_EXPONENT = -10;
+    private static final int MAX_EXPONENT = 40;
+    static final int BUCKETS = 2 + (MAX_EXPONENT - MIN_EXPONENT + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final DoubleAccumulator min = new DoubleAccumulator(Math::min, Double.POSITIVE_INFINITY);
+    private final DoubleAccumulator max = new DoubleAccumulator(Math::max, Double.NEGATIVE_INFINITY);
+    /* Samples left out by sample rates, 1 / sampleRate - 1 per recorded one; rounded per snapshot, the fraction kept */
+    private final DoubleAdder skipped = new DoubleAdder();
+
+    /* Min and max first: a snapshot that counts the sample then sees them too */
+    void record(double value) {
+        min.accumulate(value);
+        max.accumulate(value);
+        buckets.incrementAndGet(bucketOf(value));
+    }
+
+    void record(double value, double sampleRate) {
+        record(value);
+        if (sampleRate < 1) {
+            skipped.add(1 / sampleRate - 1);
+        }
+    }
+
+    /* Returns null when nothing was recorded since the last call */
+    Snapshot snapshotAndReset() {
+        long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.getAndSet(i, 0);
+            count += counts[i];
+        }
+        double minValue = min.getThenReset();
+        double maxValue = max.getThenReset();
+        if (count == 0) {
+            return null;
+        }
+        if (!(minValue <= maxValue)) {
+            /* A racing record() left its min or max to the previous snapshot: bound them by the counted buckets */
+            minValue = Math.min(minValue, floorOf(counts));
+            maxValue = Math.max(maxValue, ceilingOf(counts));
+        }
+        final double skippedValue = skipped.sumThenReset();
+        final long skippedCount = Math.round(skippedValue);
+        if (skippedValue != skippedCount) {
+            skipped.add(skippedValue - skippedCount);
+        }
+        return new Snapshot(counts, count, count + skippedCount, minValue, maxValue);
+    }
+
+    /* Lower bound of the lowest counted bucket; zero for the first bucket, which also holds zero and negatives */
+    private static double floorOf(long[] counts) {
+        int bucket = 0;
+        while (counts[bucket] == 0) {
+            bucket++;
+        }
+        return bucket == 0 ? 0 : lowerBoundOf(bucket);
+    }
+
+    /* Upper bound of the highest counted bucket; the lower bound of the last bucket, which has none */
+    private static double ceilingOf(long[] counts) {
+        int bucket = BUCKETS - 1;
+        while (counts[bucket] == 0) {
+            bucket--;
+        }
+        return lowerBoundOf(Math.min(bucket + 1, BUCKETS - 1));
+    }
+
+    static int bucketOf(double value) {
+        if (!(value > 0)) {
+            return 0;
+        }
+        int exponent = Math.getExponent(value);
+        if (exponent < MIN_EXPONENT) {
+            return 0;
+        }
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int subBucket = (int) (Double.doubleToRawLongBits(value) >>> (52 - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return 1 + (exponent - MIN_EXPONENT) * SUB_BUCKETS + subBucket;
+    }
+
+    static double lowerBoundOf(int bucket) {
+        int index = bucket - 1;
+        return Math.scalb(1.0 + (double) (index % SUB_BUCKETS) / SUB_BUCKETS, MIN_EXPONENT + index / SUB_BUCKETS);
+    }
+
+    static final class Snapshot {
+
+        private final long[] counts;
+        private final long samples;
+        private final long count;
+        private final double min;
+        private final double max;
+
+        private Snapshot(long[] counts, long samples, long count, double min, double max) {
+            this.counts = counts;
+            this.samples = samples;
+            this.count = count;
+            this.min = min;
+            this.max = max;
+        }
+
+        /* Recorded samples plus the estimate of those sampled out */
+        long count() {
+            return count;
+        }
+
+        double min() {
+            return min;
+        }
+
+        double max() {
+            return max;
+        }
+
+        /* Midpoint of the bucket holding the requested rank, clamped to the exact min and max */
+        double percentile(double percentile) {
+            long rank = Math.max(1L, (long) Math.ceil(percentile / 100.0 * samples));
+            long seen = 0;
+            for (int bucket = 0; bucket < counts.length; bucket++) {
+                seen += counts[bucket];
+                if (seen >= rank) {
+                    if (bucket == 0) {
+                        return min;
+                    }
+                    if (bucket == counts.length - 1) {
+                        return max;
+                    }
+                    double value = (lowerBoundOf(bucket) + lowerBoundOf(bucket + 1)) / 2;
+                    return Math.max(min, Math.min(max, value));
+                }
+            }
+            return max;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2017-2017 Globo.com
+ * All rights reserved.
+ *
+ * This source is subject to the Apache License, Version 2.0.
+ * Please see the LICENSE file for more information.
+ *
+ * Authors: See AUTHORS file
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.galeb.statsd;
+
+import java.util.Arrays;
+
+final class MetricKey {
+
+    private static final String[] NO_TAGS = new String[0];
+
+    final String aspect;
+    final String[] tags;
+    private final int hash;
+
+    MetricKey(String aspect, String[] tags) {
+        this.aspect = aspect;
+        this.tags = tags != null ? tags : NO_TAGS;
+        this.hash = 31 * (aspect != null ? aspect.hashCode() : 0) + Arrays.hashCode(this.tags);
+    }
+
+    /* Lookup keys borrow the caller's tag array; keys kept in a table must own theirs */
+    MetricKey copy() {
+        return tags.length == 0 ? this : new MetricKey(aspect, tags.clone());
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof MetricKey)) {
+            return false;
+        }
+        MetricKey other = (MetricKey) o;
+        return hash == other.hash
+                && (aspect != null ? aspect.equals(other.aspect) : other.aspect == null)
+                && Arrays.equals(tags, other.tags);
+    }
+
+    @Override
+    public String toString() {
+        return "MetricKey: " + aspect + Arrays.toString(tags);
+    }
+}
@@ -18,20 +18,73 @@ package io.galeb.statsd;
 
 @SuppressWarnings("unused")
 public final class NoOpStatsDClient implements StatsDClient {
+
+    private static final StatsDCounter NO_OP_COUNTER = new StatsDCounter() {
+        @Override public void count(long delta) { }
+        @Override public void increment() { }
+        @Override public void decrement() { }
+    };
+
+    private static final StatsDTimer NO_OP_TIMER = timeInMs -> { /* No-op */ };
+
     @Override public void stop() { }
+    @Override public void flush() { }
     @Override public void count(String aspect, int delta, String... tags) { }
+    @Override public void count(String aspect, int delta, double sampleRate, String... tags) { }
+    @Override public void count(String aspect, long delta, String... tags) { }
+    @Override public void count(String aspect, long delta, double sampleRate, String... tags) { }
+    @Override public void count(String aspect, long delta) { }
+    @Override public void count(String aspect, long delta, String tag) { }
     @Override public void incrementCounter(String aspect, String... tags) { }
+    @Override public void incrementCounter(String aspect, double sampleRate, String... tags) { }
     @Override public void increment(String aspect, String... tags) { }
+    @Override public void increment(String aspect, double sampleRate, String... tags) { }
+    @Override public void increment(String aspect) { }
+    @Override public void increment(String aspect, String tag) { }
     @Override public void decrementCounter(String aspect, String... tags) { }
+    @Override public void decrementCounter(String aspect, double sampleRate, String... tags) { }
     @Override public void decrement(String aspect, String... tags) { }
+    @Override public void decrement(String aspect, double sampleRate, String... tags) { }
+    @Override public void decrement(String aspect) { }
+    @Override public void decrement(String aspect, String tag) { }
     @Override public void recordGaugeValue(String aspect, double value, String... tags) { }
     @Override public void gauge(String aspect, double value, String... tags) { }
     @Override public void recordGaugeValue(String aspect, int value, String... tags) { }
     @Override public void gauge(String aspect, int value, String... tags) { }
+    @Override public void recordGaugeValue(String aspect, long value, String... tags) { }
+    @Override public void gauge(String aspect, long value, String... tags) { }
+    @Override public void gauge(String aspect, long value) { }
+    @Override public void gauge(String aspect, long value, String tag) { }
+    @Override public void gauge(String aspect, double value) { }
+    @Override public void gauge(String aspect, double value, String tag) { }
     @Override public void recordExecutionTime(String aspect, long timeInMs, String... tags) { }
+    @Override public void recordExecutionTime(String aspect, long timeInMs, double sampleRate, String... tags) { }
     @Override public void time(String aspect, long value, String... tags) { }
+    @Override public void time(String aspect, long value, double sampleRate, String... tags) { }
+    @Override public void recordExecutionTime(String aspect, double timeInMs, String... tags) { }
+    @Override public void recordExecutionTime(String aspect, double timeInMs, double sampleRate, String... tags) { }
+    @Override public void time(String aspect, double value, String... tags) { }
+    @Override public void time(String aspect, double value, double sampleRate, String... tags) { }
+    @Override public void time(String aspect, long value) { }
+    @Override public void time(String aspect, long value, String tag) { }
+    @Override public void time(String aspect, double value) { }
+    @Override public void time(String aspect, double value, String tag) { }
     @Override public void recordHistogramValue(String aspect, double value, String... tags) { }
+    @Override public void recordHistogramValue(String aspect, double value, double sampleRate, String... tags) { }
     @Override public void histogram(String aspect, double value, String... tags) { }
+    @Override public void histogram(String aspect, double value, double sampleRate, String... tags) { }
     @Override public void recordHistogramValue(String aspect, int value, String... tags) { }
+    @Override public void recordHistogramValue(String aspect, int value, double sampleRate, String... tags) { }
     @Override public void histogram(String aspect, int value, String... tags) { }
+    @Override public void histogram(String aspect, int value, double sampleRate, String... tags) { }
+    @Override public void recordHistogramValue(String aspect, long value, String... tags) { }
+    @Override public void recordHistogramValue(String aspect, long value, double sampleRate, String... tags) { }
+    @Override public void histogram(String aspect, long value, String... tags) { }
+    @Override public void histogram(String aspect, long value, double sampleRate, String... tags) { }
+    @Override public void histogram(String aspect, long value) { }
+    @Override public void histogram(String aspect, long value, String tag) { }
+    @Override public void histogram(String aspect, double value) { }
+    @Override public void histogram(String aspect, double value, String tag) { }
+    @Override public StatsDCounter counter(String aspect, String... tags) { return NO_OP_COUNTER; }
+    @Override public StatsDTimer timer(String aspect, String... tags) { return NO_OP_TIMER; }
 }
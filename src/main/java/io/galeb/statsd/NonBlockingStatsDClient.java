@@ -17,61 +17,121 @@
 package io.galeb.statsd;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.DatagramChannel;
-import java.text.NumberFormat;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Locale;
+import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
+import javax.management.ObjectName;
+
+import com.lmax.disruptor.BlockingWaitStrategy;
 import com.lmax.disruptor.EventFactory;
 import com.lmax.disruptor.EventHandler;
-import com.lmax.disruptor.EventTranslatorOneArg;
 import com.lmax.disruptor.ExceptionHandler;
 import com.lmax.disruptor.FatalExceptionHandler;
 import com.lmax.disruptor.InsufficientCapacityException;
+import com.lmax.disruptor.LifecycleAware;
+import com.lmax.disruptor.RingBuffer;
+import com.lmax.disruptor.WaitStrategy;
 import com.lmax.disruptor.dsl.Disruptor;
+import com.lmax.disruptor.dsl.ProducerType;
 
-public final class NonBlockingStatsDClient implements StatsDClient {
+public final class NonBlockingStatsDClient implements StatsDClient, StatsDClientMXBean {
 
-    private static final int PACKET_SIZE_BYTES = 1400;
+    /** Payload that fits a standard 1500 byte Ethernet frame with room for IPv6 and tunnel headers; the default. */
+    public static final int ETHERNET_PACKET_SIZE = 1400;
 
-    private static final StatsDClientErrorHandler NO_OP_HANDLER = e -> { /* No-op */ };
+    /** Payload that fits a 9000 byte jumbo frame. */
+    public static final int JUMBO_PACKET_SIZE = 8932;
 
-    private static final ThreadLocal<NumberFormat> NUMBER_FORMATTERS = ThreadLocal.withInitial(() -> {
-        NumberFormat numberFormatter = NumberFormat.getInstance(Locale.US);
-        numberFormatter.setGroupingUsed(false);
-        numberFormatter.setMaximumFractionDigits(6);
-        return numberFormatter;
-    });
+    /** Largest UDP payload over IPv4, for agents on the same host; the agent's receive buffer must be as large. */
+    public static final int LOOPBACK_PACKET_SIZE = 65507;
 
-    private final static EventFactory<Event> FACTORY = Event::new;
+    private static final int RING_BUFFER_SIZE = 16384;
+
+    private static final int EVENT_INITIAL_CAPACITY = 128;
+
+    private static final long COALESCE_INTERVAL_MILLIS = 1000;
+    private static final long OVERFLOW_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final long FLUSH_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+    private static final long RESTART_DELAY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final byte[] COUNTER_TYPE = { '|', 'c' };
+    private static final byte[] GAUGE_TYPE = { '|', 'g' };
+    private static final byte[] TIMER_TYPE = { '|', 'm', 's' };
+    private static final byte[] HISTOGRAM_TYPE = { '|', 'h' };
+    private static final byte[] TAGS_PREFIX = { '|', '#' };
+    private static final byte[] SAMPLE_RATE_PREFIX = { '|', '@', '0', '.' };
+
+    private static final StatsDClientErrorHandler NO_OP_HANDLER = e -> { /* No-op */ };
 
-    private static final EventTranslatorOneArg<Event, String> TRANSLATOR = (event, sequence, msg) -> event.setValue(msg);
+    private final static EventFactory<Event> FACTORY = Event::new;
 
-    private final String prefix;
-    private final DatagramChannel clientChannel;
-    private final InetSocketAddress address;
+    private final byte[] prefix;
     private final StatsDClientErrorHandler errorHandler;
-    private final String constantTagsRendered;
+    private final byte[] constantTagsRendered;
+    private final TagCache tagCache;
 
-    private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
-        final ThreadFactory delegate = Executors.defaultThreadFactory();
+    private final CounterAggregator counterAggregator;
+    private final GaugeAggregator gaugeAggregator;
+    private final HistogramAggregator timerAggregator;
+    private final HistogramAggregator histogramAggregator;
+    private final Stripe[] stripes;
+    private final ScheduledExecutorService scheduler;
 
-        @Override
-        public Thread newThread(Runnable r) {
-            Thread result = delegate.newThread(r);
-            result.setName("StatsD-disruptor-" + result.getName());
-            result.setDaemon(true);
-            return result;
-        }
-    });
+    private final OverflowPolicy overflowPolicy;
+    private final long blockTimeoutNanos;
+    private final long overflowReportIntervalNanos;
+    private final CounterAggregator overflowCounters;
+    private final LongAdder droppedMetrics = new LongAdder();
+    private final LongAdder unstartedDrops = new LongAdder();
+    private final LongAdder unsentDrops = new LongAdder();
+    private final AtomicLong nextOverflowReport = new AtomicLong(System.nanoTime());
+    /* Guards the reported counts only: the error handler runs after it is released */
+    private final ReentrantLock dropsLock = new ReentrantLock();
+    private long reportedDrops;
+    private long reportedUnstartedDrops;
+    private long reportedUnsentDrops;
+
+    private final LongAdder published = new LongAdder();
+    private final LongAdder packetsSent = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder partialSends = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder flushTimeNanos = new LongAdder();
+    private final LongAdder senderBusyNanos = new LongAdder();
+    private StatsDClientStats lastEmittedStats;
+    private long lastEmittedNanos;
+    private final ObjectName objectName;
 
-    private final Disruptor<Event> disruptor = new Disruptor<Event>(FACTORY, 16384, executor);
+    private final int packetSize;
+    private final boolean directSend;
+    private final long lingerNanos;
+    private final long flushTimeoutNanos;
+    private final boolean callerThread;
+    private final boolean packValues;
+    private final ExecutorService executor;
+    private final Shard[] shards;
+    private final HashRing hashRing;
+    private final AddressResolver resolver;
+    /* The client that owns the shards this one publishes into: itself, unless built on a shared runtime */
+    private final NonBlockingStatsDClient sender;
 
     public NonBlockingStatsDClient(String prefix, String hostname, int port) throws StatsDClientException {
         this(prefix, hostname, port, null, NO_OP_HANDLER);
@@ -85,52 +145,514 @@ public final class NonBlockingStatsDClient implements StatsDClient {
         this(prefix, hostname, port, constantTags, errorHandler, null);
     }
 
-    @SuppressWarnings("unchecked")
     public NonBlockingStatsDClient(String prefix, String hostname, int port, String[] constantTags, StatsDClientErrorHandler errorHandler, EventHandler<Event> handler) throws StatsDClientException {
-        if (prefix != null && prefix.length() > 0) {
-            this.prefix = String.format("%s.", prefix);
+        this(builder()
+                .prefix(prefix)
+                .hostname(hostname)
+                .port(port)
+                .constantTags(constantTags)
+                .errorHandler(errorHandler)
+                .handler(handler));
+    }
+
+    private NonBlockingStatsDClient(Builder builder) throws StatsDClientException {
+        if (builder.prefix != null && builder.prefix.length() > 0) {
+            this.prefix = String.format("%s.", builder.prefix).getBytes(StandardCharsets.UTF_8);
         } else {
-            this.prefix = "";
+            this.prefix = new byte[0];
         }
-        this.errorHandler = errorHandler;
+        this.errorHandler = builder.errorHandler;
 
-        if (constantTags != null && constantTags.length > 0) {
-            this.constantTagsRendered = tagString(constantTags, null);
+        if (builder.constantTags != null && builder.constantTags.length > 0) {
+            this.constantTagsRendered = tagString(builder.constantTags, null).getBytes(StandardCharsets.UTF_8);
         } else {
             this.constantTagsRendered = null;
         }
+        this.tagCache = builder.tagCacheCapacity > 0 ? new TagCache(builder.tagCacheCapacity) : null;
 
-        try {
-            this.clientChannel = DatagramChannel.open();
-            this.address = new InetSocketAddress(hostname, port);
-        } catch (Exception e) {
-            throw new StatsDClientException("Failed to start StatsD client", e);
+        this.sender = builder.runtime != null ? builder.runtime.sender : this;
+        this.directSend = sender == this ? builder.directSend : sender.directSend;
+        this.resolver = sender == this ? builder.resolver : sender.resolver;
+        this.packetSize = sender == this ? builder.packetSize : sender.packetSize;
+        this.lingerNanos = sender == this ? builder.lingerNanos : 0;
+        this.flushTimeoutNanos = builder.flushTimeoutNanos;
+        this.callerThread = builder.callerThread;
+        this.packValues = builder.packValues;
+        this.overflowPolicy = builder.overflowPolicy;
+        this.blockTimeoutNanos = builder.blockTimeoutNanos;
+        this.overflowReportIntervalNanos = builder.overflowReportIntervalNanos;
+        this.overflowCounters = overflowPolicy == OverflowPolicy.COALESCE ? new CounterAggregator() : null;
+        if (sender != this) {
+            this.executor = sender.executor;
+            this.shards = sender.shards;
+            this.hashRing = sender.hashRing;
+        } else {
+            this.executor = Executors.newCachedThreadPool(builder.threadFactory);
+            final List<InetSocketAddress> destinations = builder.destinations;
+            this.shards = new Shard[destinations.isEmpty() ? builder.senderShards : destinations.size()];
+            for (int i = 0; i < shards.length; i++) {
+                final InetSocketAddress destination = destinations.isEmpty() ? null : destinations.get(i);
+                final Transport transport = builder.transport;
+                final String unixSocketPath = builder.unixSocketPath;
+                final String hostname = builder.hostname;
+                final int port = builder.port;
+                shards[i] = new Shard(() -> destination != null ? openTransport(destination)
+                        : openTransport(transport, unixSocketPath, hostname, port), builder);
+            }
+            if (!builder.lazyStart) {
+                try {
+                    for (Shard shard : shards) {
+                        shard.start();
+                    }
+                } catch (Exception e) {
+                    haltStarted(shards);
+                    for (Shard shard : shards) {
+                        shard.close();
+                    }
+                    throw new StatsDClientException("Failed to start StatsD client", e);
+                }
+            }
+            if (destinations.size() > 1) {
+                List<String> nodes = new ArrayList<>();
+                for (InetSocketAddress destination : destinations) {
+                    nodes.add(destination.getHostString() + ':' + destination.getPort());
+                }
+                this.hashRing = new HashRing(nodes);
+            } else {
+                this.hashRing = null;
+            }
+        }
+
+        this.counterAggregator = builder.counterIntervalMillis > 0 ? new CounterAggregator() : null;
+        this.gaugeAggregator = builder.gaugeIntervalMillis > 0 ? new GaugeAggregator() : null;
+        this.timerAggregator = builder.histogramIntervalMillis > 0 ? new HistogramAggregator() : null;
+        this.histogramAggregator = builder.histogramIntervalMillis > 0 ? new HistogramAggregator() : null;
+
+        if (callerThread) {
+            this.stripes = new Stripe[] { new Stripe(shards[0]) };
+        } else if (builder.stripes > 0) {
+            this.stripes = new Stripe[builder.stripes];
+            for (int i = 0; i < stripes.length; i++) {
+                stripes[i] = new Stripe(shards[i % shards.length]);
+            }
+        } else {
+            this.stripes = null;
+        }
+
+        final boolean emitStats = builder.statsIntervalMillis > 0;
+        final boolean refreshDns = sender == this && builder.dnsRefreshMillis > 0;
+        final boolean flushStripes = stripes != null && builder.stripeDelayMillis > 0;
+        if (counterAggregator != null || gaugeAggregator != null || timerAggregator != null || flushStripes || overflowCounters != null
+                || emitStats || refreshDns || lingerNanos > 0) {
+            this.scheduler = Executors.newSingleThreadScheduledExecutor(daemonThreadFactory("StatsD-scheduler-"));
+            if (counterAggregator != null) {
+                this.scheduler.scheduleAtFixedRate(this::flushCounters,
+                        builder.counterIntervalMillis, builder.counterIntervalMillis, TimeUnit.MILLISECONDS);
+            }
+            if (gaugeAggregator != null) {
+                this.scheduler.scheduleAtFixedRate(this::flushGauges,
+                        builder.gaugeIntervalMillis, builder.gaugeIntervalMillis, TimeUnit.MILLISECONDS);
+            }
+            if (timerAggregator != null) {
+                this.scheduler.scheduleAtFixedRate(this::flushHistograms,
+                        builder.histogramIntervalMillis, builder.histogramIntervalMillis, TimeUnit.MILLISECONDS);
+            }
+            if (flushStripes) {
+                this.scheduler.scheduleAtFixedRate(this::flushStripes,
+                        builder.stripeDelayMillis, builder.stripeDelayMillis, TimeUnit.MILLISECONDS);
+            }
+            if (overflowCounters != null) {
+                this.scheduler.scheduleAtFixedRate(this::flushOverflowCounters,
+                        COALESCE_INTERVAL_MILLIS, COALESCE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            if (lingerNanos > 0) {
+                /* Checking twice per linger period bounds the extra latency to about one period */
+                final long period = Math.max(1L, lingerNanos / 2);
+                this.scheduler.scheduleAtFixedRate(this::flushLingering, period, period, TimeUnit.NANOSECONDS);
+            }
+            if (refreshDns) {
+                this.scheduler.scheduleWithFixedDelay(this::refreshAddresses,
+                        builder.dnsRefreshMillis, builder.dnsRefreshMillis, TimeUnit.MILLISECONDS);
+            }
+            if (emitStats) {
+                this.lastEmittedStats = getStats();
+                this.lastEmittedNanos = System.nanoTime();
+                this.scheduler.scheduleAtFixedRate(this::emitStats,
+                        builder.statsIntervalMillis, builder.statsIntervalMillis, TimeUnit.MILLISECONDS);
+            }
+        } else {
+            this.scheduler = null;
+        }
+
+        if (builder.jmxName != null) {
+            try {
+                this.objectName = new ObjectName("io.galeb.statsd", "name", builder.jmxName);
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            } catch (Exception e) {
+                stop();
+                throw new StatsDClientException("Failed to register StatsD client with JMX", e);
+            }
+        } else {
+            this.objectName = null;
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    private Transport openTransport(Transport transport, String unixSocketPath, String hostname, int port) throws IOException {
+        if (transport != null) {
+            return transport;
+        }
+        if (unixSocketPath != null) {
+            return new UnixSocketTransport(unixSocketPath);
         }
+        return new DatagramTransport(hostname, port, directSend, resolver);
+    }
+
+    private Transport openTransport(InetSocketAddress destination) throws IOException {
+        return new DatagramTransport(destination.getHostString(), destination.getPort(), directSend, resolver);
+    }
 
-        disruptor.handleExceptionsWith(new DisruptorExceptionHandler(this.errorHandler));
-        disruptor.handleEventsWith(handler != null ? handler : new Handler());
-        disruptor.start();
+    /* Runs on the scheduler, so slow lookups never hold up producers or senders */
+    private void refreshAddresses() {
+        for (Shard shard : shards) {
+            if (shard.started) {
+                try {
+                    shard.transport.refresh(resolver);
+                } catch (Exception e) {
+                    errorHandler.handle(e);
+                }
+            }
+        }
     }
 
+    /**
+     * Sends what is still pending and stops the senders. A client built on a
+     * shared {@link StatsDRuntime} only sends its pending metrics and leaves
+     * the runtime running.
+     */
     @Override
     public void stop() {
         try {
-            disruptor.shutdown();
+            if (scheduler != null) {
+                scheduler.shutdown();
+                scheduler.awaitTermination(30, TimeUnit.SECONDS);
+            }
+            flushCounters();
+            flushGauges();
+            flushHistograms();
+            flushStripes();
+            flushOverflowCounters();
+            if (sender != this) {
+                flush();
+                reportDrops();
+                return;
+            }
+            for (Shard shard : shards) {
+                shard.seal();
+                if (shard.disruptor != null) {
+                    shard.disruptor.shutdown();
+                }
+            }
             executor.shutdown();
-            executor.awaitTermination(30, TimeUnit.SECONDS);
+            /* A processor thread that only starts after halt() would run forever, so halt again until it exits */
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            while (!executor.awaitTermination(100, TimeUnit.MILLISECONDS) && System.nanoTime() < deadline) {
+                for (Shard shard : shards) {
+                    if (shard.disruptor != null) {
+                        shard.disruptor.halt();
+                    }
+                }
+            }
+            reportDrops();
         } catch (Exception e) {
             errorHandler.handle(e);
         } finally {
-            if (clientChannel != null) {
+            if (objectName != null && ManagementFactory.getPlatformMBeanServer().isRegistered(objectName)) {
                 try {
-                    clientChannel.close();
-                } catch (IOException e) {
+                    ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+                } catch (Exception e) {
                     errorHandler.handle(e);
                 }
             }
+            if (sender == this) {
+                closeTransports();
+            }
+        }
+    }
+
+    /* Caller threads send under the stripe lock, so closing under it never overlaps a send */
+    private void closeTransports() {
+        if (callerThread) {
+            stripes[0].lock.lock();
+        }
+        try {
+            for (Shard shard : shards) {
+                shard.close();
+            }
+        } finally {
+            if (callerThread) {
+                stripes[0].lock.unlock();
+            }
+        }
+    }
+
+    private void flushCounters() {
+        if (counterAggregator == null) {
+            return;
+        }
+        try {
+            counterAggregator.flush((key, sum) -> send(key.aspect, sum, COUNTER_TYPE, key.tags));
+        } catch (Exception e) {
+            errorHandler.handle(e);
+        }
+    }
+
+    private void flushGauges() {
+        if (gaugeAggregator == null) {
+            return;
+        }
+        try {
+            gaugeAggregator.flush((key, value) -> send(key.aspect, value, GAUGE_TYPE, key.tags),
+                    (key, value) -> send(key.aspect, value, GAUGE_TYPE, key.tags));
+        } catch (Exception e) {
+            errorHandler.handle(e);
+        }
+    }
+
+    private void flushHistograms() {
+        if (timerAggregator == null) {
+            return;
+        }
+        try {
+            timerAggregator.flush(this::sendSummary);
+            histogramAggregator.flush(this::sendSummary);
+        } catch (Exception e) {
+            errorHandler.handle(e);
+        }
+    }
+
+    private void flushStripes() {
+        if (stripes == null) {
+            return;
+        }
+        try {
+            for (Stripe stripe : stripes) {
+                stripe.flush();
+            }
+        } catch (Exception e) {
+            errorHandler.handle(e);
+        }
+    }
+
+    /**
+     * Reads the internal counters. Cheap enough to poll: it sums a handful of
+     * striped counters and reads the ring cursors.
+     */
+    @Override
+    public StatsDClientStats getStats() {
+        int ringBufferSize = 0;
+        long ringBufferOccupancy = 0;
+        long transportDrops = 0;
+        for (Shard shard : shards) {
+            if (!shard.started) {
+                continue;
+            }
+            transportDrops += shard.transport.dropped();
+            if (shard.ringBuffer == null) {
+                continue;
+            }
+            ringBufferSize += shard.ringBuffer.getBufferSize();
+            ringBufferOccupancy += shard.ringBuffer.getBufferSize() - shard.ringBuffer.remainingCapacity();
+        }
+        return new StatsDClientStats(
+                ringBufferSize,
+                ringBufferOccupancy,
+                published.sum(),
+                droppedMetrics.sum() + unstartedDrops.sum() + unsentDrops.sum() + transportDrops,
+                sender.packetsSent.sum(),
+                sender.bytesSent.sum(),
+                sender.partialSends.sum(),
+                sender.flushes.sum(),
+                sender.flushTimeNanos.sum(),
+                sender.senderBusyNanos.sum(),
+                tagCache != null ? tagCache.hits() : 0,
+                tagCache != null ? tagCache.misses() : 0);
+    }
+
+    /* Sends the counters as statsd.client.* metrics: deltas since the last run as counters, the rest as gauges */
+    private void emitStats() {
+        try {
+            final StatsDClientStats stats = getStats();
+            final long now = System.nanoTime();
+            final StatsDClientStats last = lastEmittedStats;
+            send("statsd.client.ring.occupancy", stats.getRingBufferOccupancy(), GAUGE_TYPE, null);
+            send("statsd.client.published", stats.getPublished() - last.getPublished(), COUNTER_TYPE, null);
+            send("statsd.client.dropped", stats.getDropped() - last.getDropped(), COUNTER_TYPE, null);
+            send("statsd.client.packets_sent", stats.getPacketsSent() - last.getPacketsSent(), COUNTER_TYPE, null);
+            send("statsd.client.bytes_sent", stats.getBytesSent() - last.getBytesSent(), COUNTER_TYPE, null);
+            send("statsd.client.partial_sends", stats.getPartialSends() - last.getPartialSends(), COUNTER_TYPE, null);
+            final long flushCount = stats.getFlushes() - last.getFlushes();
+            if (flushCount > 0) {
+                send("statsd.client.flush.avg_nanos",
+                        (stats.getFlushTimeNanos() - last.getFlushTimeNanos()) / flushCount, GAUGE_TYPE, null);
+            }
+            send("statsd.client.sender.utilization",
+                    (double) (stats.getSenderBusyNanos() - last.getSenderBusyNanos()) / Math.max(1L, now - lastEmittedNanos),
+                    GAUGE_TYPE, null);
+            lastEmittedStats = stats;
+            lastEmittedNanos = now;
+        } catch (Exception e) {
+            errorHandler.handle(e);
+        }
+    }
+
+    /**
+     * Sends everything recorded so far: pending aggregates and striped
+     * batches are published, and every sender sends its partly filled packet.
+     * Blocks until the senders have handed those packets to the transport,
+     * for at most the builder's {@link Builder#flushTimeout(long, TimeUnit)};
+     * a sender that does not get there in time is reported to the error
+     * handler.
+     */
+    @Override
+    public void flush() {
+        if (!flush(flushTimeoutNanos, TimeUnit.NANOSECONDS)) {
+            errorHandler.handle(new StatsDClientException(String.format(
+                    "Senders did not flush within %d milliseconds", TimeUnit.NANOSECONDS.toMillis(flushTimeoutNanos))));
+        }
+    }
+
+    /**
+     * Like {@link #flush()}, but waits at most {@code timeout} for the
+     * senders and tells the caller instead of the error handler. Returns
+     * false when a sender is stalled or stopped before sending its packet.
+     */
+    public boolean flush(long timeout, TimeUnit unit) {
+        if (executor.isShutdown()) {
+            return true;
+        }
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        flushCounters();
+        flushGauges();
+        flushHistograms();
+        flushStripes();
+        flushOverflowCounters();
+        final long[] markers = new long[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            /* Senders that never started have nothing to send, and callers send their own packets */
+            if (shards[i].started && !callerThread) {
+                markers[i] = publishFlushMarker(shards[i], deadline);
+                if (markers[i] < 0) {
+                    return false;
+                }
+            } else {
+                markers[i] = -1L;
+            }
+        }
+        for (int i = 0; i < shards.length; i++) {
+            while (markers[i] >= 0 && shards[i].ringBuffer.getMinimumGatingSequence() < markers[i]) {
+                if (executor.isTerminated() || System.nanoTime() - deadline >= 0) {
+                    return false;
+                }
+                LockSupport.parkNanos(FLUSH_PARK_NANOS);
+            }
+        }
+        return true;
+    }
+
+    private void flushLingering() {
+        for (Shard shard : shards) {
+            if (shard.unflushed) {
+                publishFlushMarker(shard, System.nanoTime());
+            }
+        }
+    }
+
+    /*
+     * Publishes an empty event that makes the sender send its packet. While
+     * the ring is full it retries until the deadline, then skips the marker:
+     * the packet fills up and goes out on its own then. Returns the marker's
+     * sequence, or -1 when skipped.
+     */
+    private long publishFlushMarker(Shard shard, long deadline) {
+        final RingBuffer<Event> ringBuffer = shard.ringBuffer;
+        long sequence;
+        while (true) {
+            try {
+                sequence = ringBuffer.tryNext();
+                break;
+            } catch (InsufficientCapacityException e) {
+                if (System.nanoTime() - deadline >= 0) {
+                    return -1L;
+                }
+                LockSupport.parkNanos(FLUSH_PARK_NANOS);
+            }
+        }
+        final Event event = ringBuffer.get(sequence);
+        event.reset();
+        event.flush = true;
+        ringBuffer.publish(sequence);
+        return sequence;
+    }
+
+    private void flushOverflowCounters() {
+        if (overflowCounters == null) {
+            return;
+        }
+        try {
+            overflowCounters.flush((key, sum) -> send(key.aspect, sum, COUNTER_TYPE, key.tags));
+        } catch (Exception e) {
+            errorHandler.handle(e);
+        }
+    }
+
+    private void sendSummary(MetricKey key, LogLinearHistogram.Snapshot snapshot) {
+        send(key.aspect + ".count", snapshot.count(), GAUGE_TYPE, key.tags);
+        send(key.aspect + ".min", snapshot.min(), GAUGE_TYPE, key.tags);
+        send(key.aspect + ".max", snapshot.max(), GAUGE_TYPE, key.tags);
+        send(key.aspect + ".p50", snapshot.percentile(50), GAUGE_TYPE, key.tags);
+        send(key.aspect + ".p95", snapshot.percentile(95), GAUGE_TYPE, key.tags);
+        send(key.aspect + ".p99", snapshot.percentile(99), GAUGE_TYPE, key.tags);
+    }
+
+    /*
+     * Stops the processor threads of the shards started before one failed.
+     * A halt that comes before a processor has begun running is lost, so it
+     * is repeated until the executor has no threads left, for up to a second.
+     */
+    private void haltStarted(Shard[] shards) {
+        executor.shutdown();
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1L);
+        try {
+            do {
+                for (Shard shard : shards) {
+                    if (shard.started && shard.disruptor != null) {
+                        shard.disruptor.halt();
+                    }
+                }
+            } while (!executor.awaitTermination(10, TimeUnit.MILLISECONDS) && System.nanoTime() - deadline < 0);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
+    private static ThreadFactory daemonThreadFactory(final String namePrefix) {
+        return new ThreadFactory() {
+            final ThreadFactory delegate = Executors.defaultThreadFactory();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread result = delegate.newThread(r);
+                result.setName(namePrefix + result.getName());
+                result.setDaemon(true);
+                return result;
+            }
+        };
+    }
+
     static String tagString(final String[] tags, final String tagPrefix) {
         StringBuilder sb;
         if (tagPrefix != null) {
@@ -155,13 +677,80 @@ public final class NonBlockingStatsDClient implements StatsDClient {
         return sb.toString();
     }
 
-    String tagString(final String[] tags) {
-        return tagString(tags, constantTagsRendered);
+    private void putTags(final Event event, final String[] tags, final String tag) {
+        if (tag != null) {
+            if (constantTagsRendered != null) {
+                event.put(constantTagsRendered).put((byte) ',');
+            } else {
+                event.put(TAGS_PREFIX);
+            }
+            event.put(tag);
+            return;
+        }
+        if (tagCache != null && tags != null && tags.length > 0) {
+            byte[] rendered = tagCache.get(tags);
+            if (rendered == null) {
+                Event scratch = new Event();
+                encodeTags(scratch, tags);
+                rendered = Arrays.copyOf(scratch.bytes(), scratch.length());
+                tagCache.put(tags, rendered);
+            }
+            event.put(rendered);
+            return;
+        }
+        encodeTags(event, tags);
+    }
+
+    private void encodeTags(final Event event, final String[] tags) {
+        if (constantTagsRendered != null) {
+            event.put(constantTagsRendered);
+            if (tags == null || tags.length == 0) {
+                return;
+            }
+            event.put((byte) ',');
+        } else {
+            if (tags == null || tags.length == 0) {
+                return;
+            }
+            event.put(TAGS_PREFIX);
+        }
+
+        for (int n = tags.length - 1; n >= 0; n--) {
+            event.put(tags[n]);
+            if (n > 0) {
+                event.put((byte) ',');
+            }
+        }
     }
 
     @Override
     public void count(String aspect, int delta, String... tags) {
-        send(String.format("%s%s:%d|c%s", prefix, aspect, delta, tagString(tags)));
+        addCount(aspect, delta, 1.0, tags, null);
+    }
+
+    @Override
+    public void count(String aspect, int delta, double sampleRate, String... tags) {
+        addCount(aspect, delta, sampleRate, tags, null);
+    }
+
+    @Override
+    public void count(String aspect, long delta, String... tags) {
+        addCount(aspect, delta, 1.0, tags, null);
+    }
+
+    @Override
+    public void count(String aspect, long delta, double sampleRate, String... tags) {
+        addCount(aspect, delta, sampleRate, tags, null);
+    }
+
+    @Override
+    public void count(String aspect, long delta) {
+        addCount(aspect, delta, 1.0, null, null);
+    }
+
+    @Override
+    public void count(String aspect, long delta, String tag) {
+        addCount(aspect, delta, 1.0, null, tag);
     }
 
     @Override
@@ -169,26 +758,64 @@ public final class NonBlockingStatsDClient implements StatsDClient {
         count(aspect, 1, tags);
     }
 
+    @Override
+    public void incrementCounter(String aspect, double sampleRate, String... tags) {
+        count(aspect, 1, sampleRate, tags);
+    }
+
     @Override
     public void increment(String aspect, String... tags) {
         incrementCounter(aspect, tags);
     }
 
+    @Override
+    public void increment(String aspect, double sampleRate, String... tags) {
+        incrementCounter(aspect, sampleRate, tags);
+    }
+
+    @Override
+    public void increment(String aspect) {
+        addCount(aspect, 1, 1.0, null, null);
+    }
+
+    @Override
+    public void increment(String aspect, String tag) {
+        addCount(aspect, 1, 1.0, null, tag);
+    }
+
     @Override
     public void decrementCounter(String aspect, String... tags) {
         count(aspect, -1, tags);
     }
 
+    @Override
+    public void decrementCounter(String aspect, double sampleRate, String... tags) {
+        count(aspect, -1, sampleRate, tags);
+    }
+
     @Override
     public void decrement(String aspect, String... tags) {
         decrementCounter(aspect, tags);
     }
 
+    @Override
+    public void decrement(String aspect, double sampleRate, String... tags) {
+        decrementCounter(aspect, sampleRate, tags);
+    }
+
+    @Override
+    public void decrement(String aspect) {
+        addCount(aspect, -1, 1.0, null, null);
+    }
+
+    @Override
+    public void decrement(String aspect, String tag) {
+        addCount(aspect, -1, 1.0, null, tag);
+    }
+
     @Override
     public void recordGaugeValue(String aspect, double value, String... tags) {
-        /* Intentionally using %s rather than %f here to avoid
-         * padding with extra 0s to represent precision */
-        send(String.format("%s%s:%s|g%s", prefix, aspect, NUMBER_FORMATTERS.get().format(value), tagString(tags)));
+        setGauge(aspect, value, tags, null);
     }
 
     @Override
@@ -196,10 +823,9 @@ public final class NonBlockingStatsDClient implements StatsDClient {
         recordGaugeValue(aspect, value, tags);
     }
 
-
     @Override
     public void recordGaugeValue(String aspect, int value, String... tags) {
-        send(String.format("%s%s:%d|g%s", prefix, aspect, value, tagString(tags)));
+        setGauge(aspect, value, tags, null);
     }
 
     @Override
@@ -208,94 +834,1753 @@ public final class NonBlockingStatsDClient implements StatsDClient {
     }
 
     @Override
-    public void recordExecutionTime(String aspect, long timeInMs, String... tags) {
-        send(String.format("%s%s:%d|ms%s", prefix, aspect, timeInMs, tagString(tags)));
+    public void recordGaugeValue(String aspect, long value, String... tags) {
+        setGauge(aspect, value, tags, null);
     }
 
     @Override
-    public void time(String aspect, long value, String... tags) {
-        recordExecutionTime(aspect, value, tags);
+    public void gauge(String aspect, long value, String... tags) {
+        recordGaugeValue(aspect, value, tags);
     }
 
     @Override
-    public void recordHistogramValue(String aspect, double value, String... tags) {
-        send(String.format("%s%s:%s|h%s", prefix, aspect, NUMBER_FORMATTERS.get().format(value), tagString(tags)));
+    public void gauge(String aspect, long value) {
+        setGauge(aspect, value, null, null);
     }
 
     @Override
-    public void histogram(String aspect, double value, String... tags) {
-        recordHistogramValue(aspect, value, tags);
+    public void gauge(String aspect, long value, String tag) {
+        setGauge(aspect, value, null, tag);
     }
 
     @Override
-    public void recordHistogramValue(String aspect, int value, String... tags) {
-        send(String.format("%s%s:%d|h%s", prefix, aspect, value, tagString(tags)));
+    public void gauge(String aspect, double value) {
+        setGauge(aspect, value, null, null);
     }
 
     @Override
-    public void histogram(String aspect, int value, String... tags) {
-        recordHistogramValue(aspect, value, tags);
+    public void gauge(String aspect, double value, String tag) {
+        setGauge(aspect, value, null, tag);
     }
 
-    private void send(String message) {
-        if (!disruptor.getRingBuffer().tryPublishEvent(TRANSLATOR, message)) {
-            errorHandler.handle(InsufficientCapacityException.INSTANCE);
-        }
+    @Override
+    public void recordExecutionTime(String aspect, long timeInMs, String... tags) {
+        recordTime(aspect, timeInMs, 1.0, tags, null);
     }
 
-    static class Event {
+    @Override
+    public void recordExecutionTime(String aspect, long timeInMs, double sampleRate, String... tags) {
+        recordTime(aspect, timeInMs, sampleRate, tags, null);
+    }
 
-        private String value;
+    @Override
+    public void recordExecutionTime(String aspect, double timeInMs, String... tags) {
+        recordTime(aspect, timeInMs, 1.0, tags, null);
+    }
 
-        public void setValue(String value) {
-            this.value = value;
-        }
+    @Override
+    public void recordExecutionTime(String aspect, double timeInMs, double sampleRate, String... tags) {
+        recordTime(aspect, timeInMs, sampleRate, tags, null);
+    }
 
-        @Override
-        public String toString() {
-            return "Event: " + value;
-        }
+    @Override
+    public void time(String aspect, long value, String... tags) {
+        recordExecutionTime(aspect, value, tags);
     }
 
-    private class Handler implements EventHandler<Event> {
+    @Override
+    public void time(String aspect, long value, double sampleRate, String... tags) {
+        recordExecutionTime(aspect, value, sampleRate, tags);
+    }
 
-        private final ByteBuffer sendBuffer = ByteBuffer.allocate(PACKET_SIZE_BYTES);
+    @Override
+    public void time(String aspect, double value, String... tags) {
+        recordExecutionTime(aspect, value, tags);
+    }
 
-        @Override
-        public void onEvent(Event event, long sequence, boolean batchEnd) throws Exception {
-            String message = event.value;
-            byte[] data = message.getBytes();
-            if (sendBuffer.remaining() < (data.length + 1)) {
-                flush();
-            }
-            if (sendBuffer.position() > 0) {
-                sendBuffer.put((byte) '\n');
-            }
-            sendBuffer.put(
-                    data.length > sendBuffer.remaining() ? Arrays.copyOfRange(data, 0, sendBuffer.remaining()) : data);
+    @Override
+    public void time(String aspect, double value, double sampleRate, String... tags) {
+        recordExecutionTime(aspect, value, sampleRate, tags);
+    }
 
-            if (batchEnd || 0 == sendBuffer.remaining()) {
+    @Override
+    public void time(String aspect, long value) {
+        recordTime(aspect, value, 1.0, null, null);
+    }
+
+    @Override
+    public void time(String aspect, long value, String tag) {
+        recordTime(aspect, value, 1.0, null, tag);
+    }
+
+    @Override
+    public void time(String aspect, double value) {
+        recordTime(aspect, value, 1.0, null, null);
+    }
+
+    @Override
+    public void time(String aspect, double value, String tag) {
+        recordTime(aspect, value, 1.0, null, tag);
+    }
+
+    @Override
+    public void recordHistogramValue(String aspect, double value, String... tags) {
+        recordHistogram(aspect, value, 1.0, tags, null);
+    }
+
+    @Override
+    public void recordHistogramValue(String aspect, double value, double sampleRate, String... tags) {
+        recordHistogram(aspect, value, sampleRate, tags, null);
+    }
+
+    @Override
+    public void histogram(String aspect, double value, String... tags) {
+        recordHistogramValue(aspect, value, tags);
+    }
+
+    @Override
+    public void histogram(String aspect, double value, double sampleRate, String... tags) {
+        recordHistogramValue(aspect, value, sampleRate, tags);
+    }
+
+    @Override
+    public void recordHistogramValue(String aspect, int value, String... tags) {
+        recordHistogram(aspect, value, 1.0, tags, null);
+    }
+
+    @Override
+    public void recordHistogramValue(String aspect, int value, double sampleRate, String... tags) {
+        recordHistogram(aspect, value, sampleRate, tags, null);
+    }
+
+    @Override
+    public void histogram(String aspect, int value, String... tags) {
+        recordHistogramValue(aspect, value, tags);
+    }
+
+    @Override
+    public void histogram(String aspect, int value, double sampleRate, String... tags) {
+        recordHistogramValue(aspect, value, sampleRate, tags);
+    }
+
+    @Override
+    public void recordHistogramValue(String aspect, long value, String... tags) {
+        recordHistogram(aspect, value, 1.0, tags, null);
+    }
+
+    @Override
+    public void recordHistogramValue(String aspect, long value, double sampleRate, String... tags) {
+        recordHistogram(aspect, value, sampleRate, tags, null);
+    }
+
+    @Override
+    public void histogram(String aspect, long value, String... tags) {
+        recordHistogramValue(aspect, value, tags);
+    }
+
+    @Override
+    public void histogram(String aspect, long value, double sampleRate, String... tags) {
+        recordHistogramValue(aspect, value, sampleRate, tags);
+    }
+
+    @Override
+    public void histogram(String aspect, long value) {
+        recordHistogram(aspect, value, 1.0, null, null);
+    }
+
+    @Override
+    public void histogram(String aspect, long value, String tag) {
+        recordHistogram(aspect, value, 1.0, null, tag);
+    }
+
+    @Override
+    public void histogram(String aspect, double value) {
+        recordHistogram(aspect, value, 1.0, null, null);
+    }
+
+    @Override
+    public void histogram(String aspect, double value, String tag) {
+        recordHistogram(aspect, value, 1.0, null, tag);
+    }
+
+    /*
+     * The entry points above funnel into these, passing either a tag array
+     * or a single tag so the fixed-arity overloads never allocate an array.
+     */
+    private void addCount(String aspect, long delta, double sampleRate, String[] tags, String tag) {
+        if (!isSampled(sampleRate)) {
+            return;
+        }
+        if (counterAggregator != null) {
+            counterAggregator.add(aspect, delta, sampleRate, tags(tags, tag));
+            return;
+        }
+        send(aspect, delta, COUNTER_TYPE, sampleRate, tags, tag);
+    }
+
+    private void setGauge(String aspect, long value, String[] tags, String tag) {
+        if (gaugeAggregator != null) {
+            gaugeAggregator.set(aspect, value, tags(tags, tag));
+            return;
+        }
+        send(aspect, value, GAUGE_TYPE, 1.0, tags, tag);
+    }
+
+    private void setGauge(String aspect, double value, String[] tags, String tag) {
+        if (gaugeAggregator != null) {
+            gaugeAggregator.set(aspect, value, tags(tags, tag));
+            return;
+        }
+        send(aspect, value, GAUGE_TYPE, 1.0, tags, tag);
+    }
+
+    private void recordTime(String aspect, long timeInMs, double sampleRate, String[] tags, String tag) {
+        if (!isSampled(sampleRate)) {
+            return;
+        }
+        if (timerAggregator != null) {
+            timerAggregator.record(aspect, timeInMs, sampleRate, tags(tags, tag));
+            return;
+        }
+        send(aspect, timeInMs, TIMER_TYPE, sampleRate, tags, tag);
+    }
+
+    private void recordTime(String aspect, double timeInMs, double sampleRate, String[] tags, String tag) {
+        if (!isSampled(sampleRate)) {
+            return;
+        }
+        if (timerAggregator != null) {
+            timerAggregator.record(aspect, timeInMs, sampleRate, tags(tags, tag));
+            return;
+        }
+        send(aspect, timeInMs, TIMER_TYPE, sampleRate, tags, tag);
+    }
+
+    private void recordHistogram(String aspect, long value, double sampleRate, String[] tags, String tag) {
+        if (!isSampled(sampleRate)) {
+            return;
+        }
+        if (histogramAggregator != null) {
+            histogramAggregator.record(aspect, value, sampleRate, tags(tags, tag));
+            return;
+        }
+        send(aspect, value, HISTOGRAM_TYPE, sampleRate, tags, tag);
+    }
+
+    private void recordHistogram(String aspect, double value, double sampleRate, String[] tags, String tag) {
+        if (!isSampled(sampleRate)) {
+            return;
+        }
+        if (histogramAggregator != null) {
+            histogramAggregator.record(aspect, value, sampleRate, tags(tags, tag));
+            return;
+        }
+        send(aspect, value, HISTOGRAM_TYPE, sampleRate, tags, tag);
+    }
+
+    /* Aggregation keys need an array; only the aggregating paths pay for wrapping a single tag */
+    private static String[] tags(String[] tags, String tag) {
+        return tag != null ? new String[] { tag } : tags;
+    }
+
+    /*
+     * Decided before anything is encoded or published, so a rejected sample
+     * costs one thread-local random draw.
+     */
+    private static boolean isSampled(double sampleRate) {
+        return sampleRate >= 1 || ThreadLocalRandom.current().nextDouble() < sampleRate;
+    }
+
+    /* Writes |@rate with at most six fraction digits and no trailing zeros */
+    private static void putSampleRate(final Event event, final double sampleRate) {
+        long micros = Math.max(1L, Math.round(sampleRate * 1000000));
+        if (micros >= 1000000) {
+            return;
+        }
+        event.put(SAMPLE_RATE_PREFIX);
+        for (long divisor = 100000; micros != 0; divisor /= 10) {
+            event.put((byte) ('0' + micros / divisor));
+            micros %= divisor;
+        }
+    }
+
+    private void send(String aspect, long value, byte[] type, String[] tags) {
+        send(aspect, value, type, 1.0, tags, null);
+    }
+
+    private void send(String aspect, double value, byte[] type, String[] tags) {
+        send(aspect, value, type, 1.0, tags, null);
+    }
+
+    @Override
+    public StatsDCounter counter(String aspect, String... tags) {
+        return new BoundCounter(aspect, tags);
+    }
+
+    @Override
+    public StatsDTimer timer(String aspect, String... tags) {
+        return new BoundTimer(aspect, tags);
+    }
+
+    /*
+     * Picks the shard from a spread hash of the aspect, so every line of an
+     * aspect goes through the same ring and keeps its order.
+     */
+    private Shard shardFor(String aspect) {
+        if (shards.length == 1) {
+            return shards[0];
+        }
+        if (hashRing != null) {
+            return shards[hashRing.owner(aspect)];
+        }
+        final int hash = (aspect == null ? 0 : aspect.hashCode()) * 0x9E3779B9;
+        return shards[(hash >>> 1) % shards.length];
+    }
+
+    private long claim(Shard shard) {
+        if (!shard.started && !shard.startLazily()) {
+            return -1L;
+        }
+        final RingBuffer<Event> ringBuffer = shard.ringBuffer;
+        try {
+            return ringBuffer.tryNext();
+        } catch (InsufficientCapacityException e) {
+            if (overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+                /* Everything claimed before the newer half of the ring is skipped by the sender */
+                final long skipBefore = ringBuffer.getCursor() - ringBuffer.getBufferSize() / 2 + 1;
+                if (shard.discardBefore.getAndAccumulate(skipBefore, Math::max) >= skipBefore) {
+                    /* That half is already marked and still not freed: the sender is stalled, do not wait on it */
+                    return -1L;
+                }
+            } else if (overflowPolicy != OverflowPolicy.BLOCK) {
+                return -1L;
+            }
+            return awaitSlot(ringBuffer);
+        }
+    }
+
+    private long awaitSlot(RingBuffer<Event> ringBuffer) {
+        final long deadline = System.nanoTime() + blockTimeoutNanos;
+        do {
+            LockSupport.parkNanos(OVERFLOW_PARK_NANOS);
+            try {
+                return ringBuffer.tryNext();
+            } catch (InsufficientCapacityException e) {
+                // still full
+            }
+        } while (System.nanoTime() - deadline < 0);
+        return -1L;
+    }
+
+    /* Counts metrics lost to a full ring and hands the error handler at most one summary per report interval */
+    private void dropped(long metrics) {
+        droppedMetrics.add(metrics);
+        reportDropsWhenDue();
+    }
+
+    /* Counts metrics lost because a lazy shard could not start */
+    private void droppedUnstarted(long metrics) {
+        unstartedDrops.add(metrics);
+        reportDropsWhenDue();
+    }
+
+    /* Counts metrics in a packet the transport failed to take */
+    private void droppedUnsent(long metrics) {
+        unsentDrops.add(metrics);
+        reportDropsWhenDue();
+    }
+
+    /* Metrics that found no slot: the shard failed to start, or its ring was full */
+    private void lost(Shard shard, long metrics) {
+        if (shard.started) {
+            dropped(metrics);
+        } else {
+            droppedUnstarted(metrics);
+        }
+    }
+
+    private void reportDropsWhenDue() {
+        final long next = nextOverflowReport.get();
+        final long now = System.nanoTime();
+        if (now - next >= 0 && nextOverflowReport.compareAndSet(next, now + overflowReportIntervalNanos)) {
+            reportDrops(false);
+        }
+    }
+
+    private void reportDrops() {
+        reportDrops(true);
+    }
+
+    /*
+     * Producers pass wait = false and skip the report while another thread
+     * is making one, so they never block here, nor pin a virtual thread's
+     * carrier; stop waits so that its final report is not lost.
+     */
+    private void reportDrops(boolean wait) {
+        if (wait) {
+            dropsLock.lock();
+        } else if (!dropsLock.tryLock()) {
+            return;
+        }
+        final long full;
+        final long unstarted;
+        final long unsent;
+        try {
+            final long total = droppedMetrics.sum();
+            full = total - reportedDrops;
+            reportedDrops = total;
+            final long unstartedTotal = unstartedDrops.sum();
+            unstarted = unstartedTotal - reportedUnstartedDrops;
+            reportedUnstartedDrops = unstartedTotal;
+            final long unsentTotal = unsentDrops.sum();
+            unsent = unsentTotal - reportedUnsentDrops;
+            reportedUnsentDrops = unsentTotal;
+        } finally {
+            dropsLock.unlock();
+        }
+        if (full > 0) {
+            errorHandler.handle(new StatsDClientException(String.format(
+                    "Dropped %d metrics because the ring buffer was full", full)));
+        }
+        if (unstarted > 0) {
+            errorHandler.handle(new StatsDClientException(String.format(
+                    "Dropped %d metrics because the StatsD client could not start", unstarted)));
+        }
+        if (unsent > 0) {
+            errorHandler.handle(new StatsDClientException(String.format(
+                    "Dropped %d metrics because the transport failed to send them", unsent)));
+        }
+    }
+
+    /* Timer, histogram and distribution lines: the types DogStatsD 1.1 packs several values of */
+    private static boolean isPackable(byte[] bytes, int valueEnd, int length) {
+        int i = valueEnd + 1;
+        if (i < length && (bytes[i] == 'h' || bytes[i] == 'd')) {
+            i++;
+        } else if (i + 1 < length && bytes[i] == 'm' && bytes[i + 1] == 's') {
+            i += 2;
+        } else {
+            return false;
+        }
+        return i == length || bytes[i] == '|';
+    }
+
+    private static int lineCount(byte[] bytes, int length) {
+        int lines = 1;
+        for (int i = 0; i < length; i++) {
+            if (bytes[i] == '\n') {
+                lines++;
+            }
+        }
+        return lines;
+    }
+
+    /*
+     * Returns the buffer to encode one line into: a claimed ring slot, or the
+     * locked stripe of the calling thread in striped mode. Null when the ring
+     * is full. Must be paired with publishEvent.
+     */
+    private Event claimEvent(Shard shard) {
+        if (stripes != null) {
+            Stripe stripe = lockStripe();
+            stripe.beginLine();
+            return stripe;
+        }
+        final long sequence = claim(shard);
+        if (sequence < 0) {
+            return null;
+        }
+        final Event event = shard.ringBuffer.get(sequence);
+        event.reset();
+        event.sequence = sequence;
+        return event;
+    }
+
+    private void publishEvent(Shard shard, Event event) {
+        published.increment();
+        if (event instanceof Stripe) {
+            Stripe stripe = (Stripe) event;
+            try {
+                stripe.endLine();
+            } finally {
+                stripe.unlock();
+            }
+        } else {
+            shard.ringBuffer.publish(event.sequence);
+        }
+    }
+
+    /* Copies a batch of complete lines into a single slot of the stripe's shard */
+    private void publishBatch(Stripe batch, int length) {
+        if (callerThread) {
+            sendBatch(batch, length);
+            return;
+        }
+        final RingBuffer<Event> ringBuffer = batch.shard.ringBuffer;
+        final long sequence = claim(batch.shard);
+        if (sequence < 0) {
+            batch.drop(batch.shard.started ? droppedMetrics : unstartedDrops, lineCount(batch.bytes(), length));
+            return;
+        }
+        try {
+            final Event event = ringBuffer.get(sequence);
+            event.reset();
+            event.put(batch.bytes(), 0, length);
+        } finally {
+            ringBuffer.publish(sequence);
+        }
+    }
+
+    /*
+     * Sends a batch from the calling thread, which holds the stripe's lock.
+     * There is a single stripe in this mode, so the lock also serializes the
+     * transport and the shard's send buffer. Nothing the transport throws
+     * reaches the caller: it goes to the error handler once the stripe is
+     * unlocked, and the lines count as dropped unless the transport took the
+     * packet.
+     */
+    private void sendBatch(Stripe batch, int length) {
+        final Shard shard = batch.shard;
+        if (!shard.started && !shard.startLazily(batch)) {
+            batch.drop(unstartedDrops, lineCount(batch.bytes(), length));
+            return;
+        }
+        if (length > packetSize) {
+            batch.fail(new IOException(String.format(
+                    "Dropped a %d byte line that does not fit in a %d byte packet", length, packetSize)));
+            return;
+        }
+        final ByteBuffer sendBuffer = shard.sendBuffer;
+        sendBuffer.clear();
+        sendBuffer.put(batch.bytes(), 0, length);
+        sendBuffer.flip();
+        final long start = System.nanoTime();
+        try {
+            shard.transport.send(sendBuffer);
+            shard.transport.flush();
+        } catch (Exception e) {
+            batch.fail(e);
+            if (sendBuffer.hasRemaining()) {
+                batch.drop(unsentDrops, lineCount(batch.bytes(), length));
+            }
+        } finally {
+            recordSend(length, sendBuffer.hasRemaining(), start);
+        }
+    }
+
+    private void recordSend(int size, boolean partial, long startNanos) {
+        flushTimeNanos.add(System.nanoTime() - startNanos);
+        flushes.increment();
+        if (partial) {
+            partialSends.increment();
+        } else {
+            packetsSent.increment();
+            bytesSent.add(size);
+        }
+    }
+
+    /*
+     * Locks the stripe picked from the thread id, waiting when it is taken.
+     * Stripes are published independently, so a thread that moved on to
+     * another stripe could have a later gauge value reach the agent before an
+     * earlier one; keeping each thread on one stripe keeps its lines in order.
+     */
+    private Stripe lockStripe() {
+        final int index = (int) ((Thread.currentThread().getId() * 0x9E3779B97F4A7C15L) >>> 40);
+        final Stripe stripe = stripes[index & (stripes.length - 1)];
+        stripe.lock.lock();
+        return stripe;
+    }
+
+    /*
+     * Encodes the metric line straight into the claimed buffer, so publishing
+     * an integral value allocates nothing once the buffers have grown to fit
+     * the longest line.
+     */
+    private void send(String aspect, long value, byte[] type, double sampleRate, String[] tags, String tag) {
+        final Shard shard = shardFor(aspect);
+        final Event event = claimEvent(shard);
+        if (event == null) {
+            if (type == COUNTER_TYPE && overflowCounters != null) {
+                overflowCounters.add(aspect, value, sampleRate, tags(tags, tag));
+            } else {
+                lost(shard, 1);
+            }
+            return;
+        }
+        try {
+            event.put(prefix).put(aspect).put((byte) ':').markValueStart().put(value).markValueEnd().put(type);
+            putSampleRate(event, sampleRate);
+            putTags(event, tags, tag);
+        } finally {
+            publishEvent(shard, event);
+        }
+    }
+
+    private void send(String aspect, double value, byte[] type, double sampleRate, String[] tags, String tag) {
+        final Shard shard = shardFor(aspect);
+        final Event event = claimEvent(shard);
+        if (event == null) {
+            lost(shard, 1);
+            return;
+        }
+        try {
+            event.put(prefix).put(aspect).put((byte) ':').markValueStart().put(value).markValueEnd().put(type);
+            putSampleRate(event, sampleRate);
+            putTags(event, tags, tag);
+        } finally {
+            publishEvent(shard, event);
+        }
+    }
+
+    private void send(BoundMetric metric, long value, byte[] type) {
+        final Event event = claimEvent(metric.shard);
+        if (event == null) {
+            if (type == COUNTER_TYPE && overflowCounters != null) {
+                overflowCounters.add(metric.key, value);
+            } else {
+                lost(metric.shard, 1);
+            }
+            return;
+        }
+        try {
+            event.put(metric.name).markValueStart().put(value).markValueEnd().put(type).put(metric.suffix);
+        } finally {
+            publishEvent(metric.shard, event);
+        }
+    }
+
+    private abstract class BoundMetric {
+
+        final MetricKey key;
+        /* encoded "prefix.aspect:" */
+        final byte[] name;
+        /* encoded tags */
+        final byte[] suffix;
+        final Shard shard;
+
+        BoundMetric(String aspect, String[] tags) {
+            this.key = new MetricKey(aspect, tags).copy();
+            this.shard = shardFor(aspect);
+            Event scratch = new Event();
+            scratch.put(prefix).put(aspect).put((byte) ':');
+            this.name = Arrays.copyOf(scratch.bytes(), scratch.length());
+            scratch.reset();
+            encodeTags(scratch, key.tags);
+            this.suffix = Arrays.copyOf(scratch.bytes(), scratch.length());
+        }
+    }
+
+    private final class BoundCounter extends BoundMetric implements StatsDCounter {
+
+        BoundCounter(String aspect, String[] tags) {
+            super(aspect, tags);
+        }
+
+        @Override
+        public void count(long delta) {
+            if (counterAggregator != null) {
+                counterAggregator.add(key, delta);
+                return;
+            }
+            send(this, delta, COUNTER_TYPE);
+        }
+
+        @Override
+        public void increment() {
+            count(1);
+        }
+
+        @Override
+        public void decrement() {
+            count(-1);
+        }
+    }
+
+    private final class BoundTimer extends BoundMetric implements StatsDTimer {
+
+        BoundTimer(String aspect, String[] tags) {
+            super(aspect, tags);
+        }
+
+        @Override
+        public void record(long timeInMs) {
+            if (timerAggregator != null) {
+                timerAggregator.record(key, timeInMs);
+                return;
+            }
+            send(this, timeInMs, TIMER_TYPE);
+        }
+    }
+
+    /*
+     * Producer-side batch of newline separated lines, guarded by its own lock.
+     * Lines reach the ring as one event per packet, or when the scheduler
+     * flushes it, so producers spread over stripes claim a ring slot once per
+     * batch instead of contending on the ring cursor for every metric.
+     */
+    private final class Stripe extends Event {
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Shard shard;
+        private int lineStart;
+        /*
+         * Errors and drops met while the lock is held, reported once it is
+         * released: the lock is reentrant, so an error handler that records a
+         * metric would otherwise write into this stripe in the middle of a batch.
+         */
+        private Exception failure;
+        private boolean dropped;
+
+        Stripe(Shard shard) {
+            this.shard = shard;
+        }
+
+        void fail(Exception e) {
+            if (failure == null) {
+                failure = e;
+            } else {
+                failure.addSuppressed(e);
+            }
+        }
+
+        void drop(LongAdder counter, long metrics) {
+            counter.add(metrics);
+            dropped = true;
+        }
+
+        void unlock() {
+            if (lock.getHoldCount() > 1) {
+                lock.unlock();
+                return;
+            }
+            final Exception failure = this.failure;
+            final boolean dropped = this.dropped;
+            this.failure = null;
+            this.dropped = false;
+            lock.unlock();
+            if (failure != null) {
+                errorHandler.handle(failure);
+            }
+            if (dropped) {
+                reportDropsWhenDue();
+            }
+        }
+
+        void beginLine() {
+            lineStart = length();
+            if (lineStart > 0) {
+                put((byte) '\n');
+            }
+        }
+
+        /* A batch is handed over at most once: whatever publishing it throws, it leaves the stripe */
+        void endLine() {
+            if (length() > packetSize && lineStart > 0) {
+                try {
+                    publishBatch(this, lineStart);
+                } finally {
+                    compact(lineStart + 1);
+                }
+            }
+            if (length() >= packetSize) {
+                try {
+                    publishBatch(this, length());
+                } finally {
+                    reset();
+                }
+            }
+        }
+
+        void flush() {
+            lock.lock();
+            try {
+                if (length() > 0) {
+                    try {
+                        publishBatch(this, length());
+                    } finally {
+                        reset();
+                    }
+                }
+            } finally {
+                unlock();
+            }
+        }
+    }
+
+    static class Event {
+
+        private static final byte[] NULL = { 'n', 'u', 'l', 'l' };
+        private static final byte[] LONG_MIN_VALUE = Long.toString(Long.MIN_VALUE).getBytes(StandardCharsets.US_ASCII);
+        private static final int FRACTION_DIGITS = 6;
+        private static final double FRACTION_SCALE = 1e6;
+        /* Below this, value * FRACTION_SCALE is off the exact product by less than 1/16 */
+        private static final double FAST_DOUBLE_LIMIT = 1e9;
+
+        private byte[] bytes = new byte[EVENT_INITIAL_CAPACITY];
+        private int length;
+        private long sequence;
+        /* Marker asking the sender to send its packet now */
+        private boolean flush;
+        /* Bounds of the value in a single line event, for packing; zero when unknown */
+        private int valueStart;
+        private int valueEnd;
+
+        void reset() {
+            length = 0;
+            flush = false;
+            valueStart = 0;
+            valueEnd = 0;
+        }
+
+        Event markValueStart() {
+            valueStart = length;
+            return this;
+        }
+
+        Event markValueEnd() {
+            valueEnd = length;
+            return this;
+        }
+
+        byte[] bytes() {
+            return bytes;
+        }
+
+        int length() {
+            return length;
+        }
+
+        Event put(byte value) {
+            ensureCapacity(length + 1);
+            bytes[length++] = value;
+            return this;
+        }
+
+        Event put(byte[] value) {
+            return put(value, 0, value.length);
+        }
+
+        Event put(byte[] value, int offset, int size) {
+            ensureCapacity(length + size);
+            System.arraycopy(value, offset, bytes, length, size);
+            length += size;
+            return this;
+        }
+
+        /* Discards everything before offset from */
+        void compact(int from) {
+            System.arraycopy(bytes, from, bytes, 0, length - from);
+            length -= from;
+        }
+
+        /* UTF-8 without going through a CharsetEncoder; unpaired surrogates become '?' like String.getBytes */
+        Event put(String value) {
+            if (value == null) {
+                return put(NULL);
+            }
+            final int size = value.length();
+            ensureCapacity(length + size * 3);
+            for (int i = 0; i < size; i++) {
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    bytes[length++] = (byte) c;
+                } else if (c < 0x800) {
+                    bytes[length++] = (byte) (0xc0 | (c >> 6));
+                    bytes[length++] = (byte) (0x80 | (c & 0x3f));
+                } else if (Character.isHighSurrogate(c) && i + 1 < size && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    bytes[length++] = (byte) (0xf0 | (codePoint >> 18));
+                    bytes[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                    bytes[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                    bytes[length++] = (byte) (0x80 | (codePoint & 0x3f));
+                } else if (Character.isSurrogate(c)) {
+                    bytes[length++] = (byte) '?';
+                } else {
+                    bytes[length++] = (byte) (0xe0 | (c >> 12));
+                    bytes[length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    bytes[length++] = (byte) (0x80 | (c & 0x3f));
+                }
+            }
+            return this;
+        }
+
+        Event put(long value) {
+            if (value == Long.MIN_VALUE) {
+                return put(LONG_MIN_VALUE);
+            }
+            ensureCapacity(length + 20);
+            if (value < 0) {
+                bytes[length++] = '-';
+                value = -value;
+            }
+            int digits = 1;
+            for (long remaining = value; remaining >= 10; remaining /= 10) {
+                digits++;
+            }
+            int position = length + digits;
+            do {
+                bytes[--position] = (byte) ('0' + (value % 10));
+                value /= 10;
+            } while (value != 0);
+            length += digits;
+            return this;
+        }
+
+        /*
+         * Plain decimal with at most six fraction digits, rounded half-even and
+         * without trailing zeros, like a grouping-free US NumberFormat but
+         * without its allocations. Unlike NumberFormat, negative zero is
+         * written "0" and non-finite values as "NaN" and "Infinity".
+         */
+        Event put(double value) {
+            if (Double.isNaN(value) || Double.isInfinite(value)) {
+                return put(Double.toString(value));
+            }
+            final double magnitude = Math.abs(value);
+            if (magnitude >= FAST_DOUBLE_LIMIT) {
+                /* Up to 2^53 every whole number is exact and its own shortest form; above, the decimal digits differ */
+                if (magnitude < 0x1p53 && value == (long) value) {
+                    return put((long) value);
+                }
+                return putDecimal(value);
+            }
+            final double scaled = magnitude * FRACTION_SCALE;
+            final double half = scaled - Math.floor(scaled) - 0.5;
+            if (Math.abs(half) <= Math.ulp(scaled)) {
+                /* Too close to a tie for the rounded product to tell which way the exact value goes */
+                return putDecimal(value);
+            }
+            final long micros = (long) Math.rint(scaled);
+            if (value < 0 && micros != 0) {
+                put((byte) '-');
+            }
+            put(micros / (long) FRACTION_SCALE);
+            int fraction = (int) (micros % (long) FRACTION_SCALE);
+            if (fraction != 0) {
+                int digits = FRACTION_DIGITS;
+                while (fraction % 10 == 0) {
+                    fraction /= 10;
+                    digits--;
+                }
+                ensureCapacity(length + 1 + digits);
+                bytes[length++] = '.';
+                for (int position = length + digits - 1; position >= length; position--) {
+                    bytes[position] = (byte) ('0' + fraction % 10);
+                    fraction /= 10;
+                }
+                length += digits;
+            }
+            return this;
+        }
+
+        /* Shortest round-trip digits, or the exact binary value rounded when those need more fraction digits */
+        private Event putDecimal(double value) {
+            BigDecimal decimal = BigDecimal.valueOf(value);
+            if (decimal.scale() > FRACTION_DIGITS) {
+                decimal = new BigDecimal(value).setScale(FRACTION_DIGITS, RoundingMode.HALF_EVEN);
+            }
+            return put(decimal.stripTrailingZeros().toPlainString());
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > bytes.length) {
+                byte[] grown = new byte[Math.max(capacity, bytes.length << 1)];
+                System.arraycopy(bytes, 0, grown, 0, length);
+                bytes = grown;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Event: " + new String(bytes, 0, length, StandardCharsets.UTF_8);
+        }
+    }
+
+    /*
+     * One sender: transport, ring and sender thread, or only the transport and
+     * a send buffer when callers send themselves. Shards share nothing, so
+     * sender throughput grows with their number. Nothing is opened or
+     * allocated until start(), which a lazy client calls on the first metric;
+     * the fields it sets are published by the volatile write of started.
+     */
+    private final class Shard {
+
+        private final Callable<Transport> opener;
+        /* False for a transport handed to the builder: a failed start leaves it open for the next attempt, and stop closes it */
+        private final boolean ownsTransport;
+        private final int ringBufferSize;
+        private final ProducerType producerType;
+        private final WaitStrategy waitStrategy;
+        private final EventHandler<Event> handler;
+        private final ReentrantLock startLock = new ReentrantLock();
+        private long nextStartNanos = System.nanoTime();
+        private boolean sealed;
+        volatile boolean started;
+        Transport transport;
+        Disruptor<Event> disruptor;
+        RingBuffer<Event> ringBuffer;
+        ByteBuffer sendBuffer;
+        final AtomicLong discardBefore = new AtomicLong(-1L);
+        /* Set by a lingering sender while its packet waits for more lines */
+        volatile boolean unflushed;
+
+        Shard(Callable<Transport> opener, Builder builder) {
+            this.opener = opener;
+            this.ownsTransport = builder.transport == null;
+            this.ringBufferSize = builder.ringBufferSize;
+            this.producerType = builder.producerType;
+            this.waitStrategy = builder.waitStrategy;
+            this.handler = builder.handler;
+        }
+
+        @SuppressWarnings("unchecked")
+        void start() throws Exception {
+            transport = opener.call();
+            if (callerThread) {
+                sendBuffer = directSend ? ByteBuffer.allocateDirect(packetSize) : ByteBuffer.allocate(packetSize);
+            } else {
+                disruptor = new Disruptor<Event>(FACTORY, ringBufferSize, executor, producerType, waitStrategy);
+                disruptor.handleExceptionsWith(new DisruptorExceptionHandler(errorHandler));
+                disruptor.handleEventsWith(handler != null ? handler : new Handler(this));
+                ringBuffer = disruptor.getRingBuffer();
+                disruptor.start();
+            }
+            started = true;
+        }
+
+        /*
+         * Starts on a first metric; after a failure, tries again at most once
+         * per RESTART_DELAY_NANOS. Only the thread that gets the lock starts
+         * the shard: others return at once and drop their metric rather than
+         * wait on its lookup and connect.
+         */
+        boolean startLazily() {
+            return startLazily(null);
+        }
+
+        /* Hands a start failure to the stripe the caller holds, when it holds one, instead of the error handler */
+        boolean startLazily(Stripe holder) {
+            if (!startLock.tryLock()) {
+                return started;
+            }
+            try {
+                if (!started && !sealed && System.nanoTime() - nextStartNanos >= 0) {
+                    try {
+                        start();
+                    } catch (Exception e) {
+                        nextStartNanos = System.nanoTime() + RESTART_DELAY_NANOS;
+                        disruptor = null;
+                        final StatsDClientException failure = new StatsDClientException("Failed to start StatsD client", e);
+                        if (ownsTransport && transport != null) {
+                            try {
+                                transport.close();
+                            } catch (IOException closeFailure) {
+                                failure.addSuppressed(closeFailure);
+                            }
+                            transport = null;
+                        }
+                        if (holder != null) {
+                            holder.fail(failure);
+                        } else {
+                            errorHandler.handle(failure);
+                        }
+                    }
+                }
+                return started;
+            } finally {
+                startLock.unlock();
+            }
+        }
+
+        /* Keeps a stopping client from starting the shard afterwards */
+        void seal() {
+            startLock.lock();
+            try {
+                sealed = true;
+            } finally {
+                startLock.unlock();
+            }
+        }
+
+        void close() {
+            if (transport == null) {
+                return;
+            }
+            try {
+                transport.close();
+            } catch (IOException e) {
+                errorHandler.handle(e);
+            }
+        }
+    }
+
+    class Handler implements EventHandler<Event>, LifecycleAware {
+
+        private final ByteBuffer sendBuffer = directSend ? ByteBuffer.allocateDirect(packetSize) : ByteBuffer.allocate(packetSize);
+        private final Shard shard;
+        private final Transport transport;
+        private final AtomicLong discardBefore;
+        private boolean busy;
+        private long busySince;
+        /* Name and suffix of the line values are packed into, when packing */
+        private final byte[] openKey = packValues ? new byte[packetSize] : null;
+        private int openNameLength;
+        private int openKeyLength;
+
+        /* Sends through the first shard, for benchmarks that drive a handler directly */
+        Handler() {
+            this(shards[0]);
+        }
+
+        private Handler(Shard shard) {
+            this.shard = shard;
+            this.transport = shard.transport;
+            this.discardBefore = shard.discardBefore;
+        }
+
+        @Override
+        public void onEvent(Event event, long sequence, boolean batchEnd) throws Exception {
+            if (!busy) {
+                busy = true;
+                busySince = System.nanoTime();
+            }
+            try {
+                int length = event.length;
+                if (event.flush) {
+                    flush();
+                    transport.flush();
+                    shard.unflushed = false;
+                } else if (sequence < discardBefore.get()) {
+                    dropped(lineCount(event.bytes, length));
+                } else if (openKey != null && event.valueStart > 0 && isPackable(event.bytes, event.valueEnd, length)) {
+                    pack(event);
+                } else {
+                    closeLine();
+                    if (sendBuffer.position() > 0 && sendBuffer.remaining() < (length + 1)) {
+                        flush();
+                    }
+                    if (length <= sendBuffer.remaining()) {
+                        append(event.bytes, 0, length);
+                    } else {
+                        appendLines(event.bytes, length);
+                    }
+                }
+
+                if (0 == sendBuffer.remaining()) {
+                    flush();
+                }
+                if (batchEnd && lingerNanos == 0) {
+                    flush();
+                    transport.flush();
+                } else if (batchEnd && shard.unflushed != sendBuffer.position() > 0) {
+                    /* Lingering: the packet waits for more lines or a flush marker */
+                    shard.unflushed = sendBuffer.position() > 0;
+                }
+            } finally {
+                if (batchEnd) {
+                    busy = false;
+                    senderBusyNanos.add(System.nanoTime() - busySince);
+                }
+            }
+        }
+
+        @Override
+        public void onStart() {
+        }
+
+        /* Sends what a lingering sender still holds once the ring is drained on stop */
+        @Override
+        public void onShutdown() {
+            try {
+                flush();
+                transport.flush();
+            } catch (IOException e) {
+                errorHandler.handle(e);
+            }
+        }
+
+        /*
+         * Adds the value to the open line when it has the same name, type,
+         * rate and tags, as in "aspect:v1:v2|h|#tags". The open line's suffix
+         * is held back in openKey, and its room kept free in the packet,
+         * until a different line or a flush closes it.
+         */
+        private void pack(Event event) throws IOException {
+            final byte[] bytes = event.bytes;
+            final int nameLength = event.valueStart;
+            final int valueLength = event.valueEnd - event.valueStart;
+            final int suffixLength = event.length - event.valueEnd;
+            if (openKeyLength > 0 && isOpenLine(bytes, nameLength, event.valueEnd, event.length)) {
+                if (sendBuffer.remaining() >= 1 + valueLength + suffixLength) {
+                    sendBuffer.put((byte) ':');
+                    sendBuffer.put(bytes, event.valueStart, valueLength);
+                    return;
+                }
+                flush();
+            } else {
+                closeLine();
+            }
+            if (sendBuffer.position() > 0 && sendBuffer.remaining() < (event.length + 1)) {
                 flush();
             }
+            if (event.length > sendBuffer.remaining()) {
+                appendLines(bytes, event.length);
+                return;
+            }
+            if (sendBuffer.position() > 0) {
+                sendBuffer.put((byte) '\n');
+            }
+            sendBuffer.put(bytes, 0, event.valueEnd);
+            System.arraycopy(bytes, 0, openKey, 0, nameLength);
+            System.arraycopy(bytes, event.valueEnd, openKey, nameLength, suffixLength);
+            openNameLength = nameLength;
+            openKeyLength = nameLength + suffixLength;
+        }
+
+        private boolean isOpenLine(byte[] bytes, int nameLength, int valueEnd, int length) {
+            if (nameLength != openNameLength || nameLength + length - valueEnd != openKeyLength) {
+                return false;
+            }
+            for (int i = 0; i < nameLength; i++) {
+                if (bytes[i] != openKey[i]) {
+                    return false;
+                }
+            }
+            for (int i = valueEnd, j = nameLength; i < length; i++, j++) {
+                if (bytes[i] != openKey[j]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /* Writes the held back suffix of the open line */
+        private void closeLine() {
+            if (openKeyLength > 0) {
+                sendBuffer.put(openKey, openNameLength, openKeyLength - openNameLength);
+                openKeyLength = 0;
+            }
+        }
+
+        /* Slow path for an event larger than a packet: split it on line boundaries */
+        private void appendLines(byte[] bytes, int length) throws IOException {
+            int start = 0;
+            while (start < length) {
+                int end = start;
+                while (end < length && bytes[end] != '\n') {
+                    end++;
+                }
+                int lineLength = end - start;
+                if (lineLength > packetSize) {
+                    errorHandler.handle(new IOException(String.format(
+                            "Dropped a %d byte line that does not fit in a %d byte packet", lineLength, packetSize)));
+                } else {
+                    if (sendBuffer.position() > 0 && sendBuffer.remaining() < (lineLength + 1)) {
+                        flush();
+                    }
+                    append(bytes, start, lineLength);
+                }
+                start = end + 1;
+            }
+        }
+
+        private void append(byte[] bytes, int offset, int length) {
+            if (sendBuffer.position() > 0) {
+                sendBuffer.put((byte) '\n');
+            }
+            sendBuffer.put(bytes, offset, length);
         }
 
         private void flush() throws IOException {
-            int sizeOfBuffer = sendBuffer.position();
+            closeLine();
+            if (sendBuffer.position() == 0) {
+                return;
+            }
             sendBuffer.flip();
-            int sentBytes = clientChannel.send(sendBuffer, address);
-            sendBuffer.clear();
-
-            if (sizeOfBuffer != sentBytes) {
-                errorHandler.handle(
-                        new IOException(
-                                String.format(
-                                        "Could not send entirely stat %s to host %s:%d. Only sent %d bytes out of %d bytes",
-                                        sendBuffer.toString(),
-                                        address.getHostName(),
-                                        address.getPort(),
-                                        sentBytes,
-                                        sizeOfBuffer)));
+            final int size = sendBuffer.remaining();
+            final long start = System.nanoTime();
+            try {
+                transport.send(sendBuffer);
+            } finally {
+                recordSend(size, sendBuffer.hasRemaining(), start);
+                sendBuffer.clear();
+            }
+        }
+    }
+
+    public static final class Builder {
+
+        private String prefix;
+        private String hostname;
+        private int port;
+        private String[] constantTags;
+        private StatsDClientErrorHandler errorHandler = NO_OP_HANDLER;
+        private EventHandler<Event> handler;
+        private int ringBufferSize = RING_BUFFER_SIZE;
+        private WaitStrategy waitStrategy = new BlockingWaitStrategy();
+        private ProducerType producerType = ProducerType.MULTI;
+        private ThreadFactory threadFactory = daemonThreadFactory("StatsD-disruptor-");
+        private int packetSize = ETHERNET_PACKET_SIZE;
+        private int stripes;
+        private long stripeDelayMillis;
+        private boolean directSend;
+        private String unixSocketPath;
+        private Transport transport;
+        private long counterIntervalMillis;
+        private long gaugeIntervalMillis;
+        private long histogramIntervalMillis;
+        private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_NEWEST;
+        private long blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(10);
+        private long overflowReportIntervalNanos = TimeUnit.SECONDS.toNanos(10);
+        private long statsIntervalMillis;
+        private int senderShards = 1;
+        private final List<InetSocketAddress> destinations = new ArrayList<>();
+        private AddressResolver resolver = AddressResolver.SYSTEM;
+        private long dnsRefreshMillis;
+        private int tagCacheCapacity;
+        private long lingerNanos;
+        private long flushTimeoutNanos = TimeUnit.SECONDS.toNanos(5);
+        private String jmxName;
+        private StatsDRuntime runtime;
+        private boolean lazyStart;
+        private boolean callerThread;
+        private boolean packValues;
+
+        private Builder() {
+        }
+
+        public Builder prefix(String prefix) {
+            this.prefix = prefix;
+            return this;
+        }
+
+        public Builder hostname(String hostname) {
+            this.hostname = hostname;
+            return this;
+        }
+
+        public Builder port(int port) {
+            this.port = port;
+            return this;
+        }
+
+        public Builder constantTags(String... constantTags) {
+            this.constantTags = constantTags;
+            return this;
+        }
+
+        public Builder errorHandler(StatsDClientErrorHandler errorHandler) {
+            this.errorHandler = errorHandler != null ? errorHandler : NO_OP_HANDLER;
+            return this;
+        }
+
+        Builder handler(EventHandler<Event> handler) {
+            this.handler = handler;
+            return this;
+        }
+
+        /**
+         * Number of slots in the ring, a power of two; 16384 by default. A full
+         * ring falls back to the {@link #overflowPolicy(OverflowPolicy)}, so size
+         * it for the longest burst the sender can fall behind on.
+         */
+        public Builder ringBufferSize(int ringBufferSize) {
+            if (Integer.bitCount(ringBufferSize) != 1) {
+                throw new IllegalArgumentException("ringBufferSize must be a power of 2");
+            }
+            this.ringBufferSize = ringBufferSize;
+            return this;
+        }
+
+        /**
+         * How the sender thread waits for metrics. {@link BlockingWaitStrategy}
+         * (the default) parks and costs nothing when idle;
+         * {@link com.lmax.disruptor.SleepingWaitStrategy} and
+         * {@link com.lmax.disruptor.YieldingWaitStrategy} trade some CPU for
+         * lower latency and {@link com.lmax.disruptor.BusySpinWaitStrategy}
+         * burns a whole core to react immediately.
+         */
+        public Builder waitStrategy(WaitStrategy waitStrategy) {
+            this.waitStrategy = waitStrategy;
+            return this;
+        }
+
+        /**
+         * {@link ProducerType#SINGLE} skips the claim CAS but is only safe when
+         * exactly one thread ever records metrics on this client, and also
+         * calls {@link NonBlockingStatsDClient#flush()} and
+         * {@link NonBlockingStatsDClient#stop()}. The scheduler publishes too
+         * when aggregating, coalescing, striping, lingering or sending self
+         * telemetry, and so do the clients of a runtime, so {@link #build()}
+         * rejects it with any of those.
+         */
+        public Builder producerType(ProducerType producerType) {
+            this.producerType = producerType;
+            return this;
+        }
+
+        /**
+         * Creates the sender thread. This is also the hook for pinning it to a
+         * CPU with an affinity library, as the JDK has no API for it.
+         */
+        public Builder threadFactory(ThreadFactory threadFactory) {
+            this.threadFactory = threadFactory;
+            return this;
+        }
+
+        /**
+         * Maximum payload of a datagram, {@link #ETHERNET_PACKET_SIZE} by default.
+         * Use {@link #JUMBO_PACKET_SIZE} on jumbo frame networks and
+         * {@link #LOOPBACK_PACKET_SIZE} when the agent is local, so the same
+         * traffic takes far fewer datagrams. Lines are never split, so a line
+         * longer than this is dropped and reported to the error handler.
+         */
+        public Builder packetSize(int packetSize) {
+            if (packetSize <= 0 || packetSize > LOOPBACK_PACKET_SIZE) {
+                throw new IllegalArgumentException("packetSize must be between 1 and " + LOOPBACK_PACKET_SIZE);
+            }
+            this.packetSize = packetSize;
+            return this;
+        }
+
+        /**
+         * Sends packets through a custom {@link Transport}, such as
+         * {@link TcpTransport} or {@link InMemoryTransport}, instead of UDP to
+         * {@code hostname:port}. The client closes it on stop.
+         */
+        public Builder transport(Transport transport) {
+            this.transport = transport;
+            return this;
+        }
+
+        /**
+         * Sends to a local agent over a stream-mode Unix domain socket instead of
+         * UDP to {@code hostname:port}. Each packet is written newline terminated,
+         * so the agent must accept newline framed stream input. Local IPC skips
+         * the IP stack and blocks when the agent falls behind instead of losing
+         * datagrams. Pair it with a larger {@link #packetSize(int)}, such as
+         * {@link #LOOPBACK_PACKET_SIZE}. Requires Java 16 or later.
+         */
+        public Builder unixSocket(String path) {
+            if (!UnixSocketTransport.isSupported()) {
+                throw new UnsupportedOperationException("Unix domain sockets require Java 16 or later");
+            }
+            this.unixSocketPath = path;
+            return this;
+        }
+
+        /**
+         * Keeps filling a packet across batches until it is full or has waited
+         * about {@code maxDelay}, instead of sending whatever the sender has at
+         * the end of every batch. Under bursty, moderate load this sends far
+         * fewer, fuller datagrams at the cost of up to {@code maxDelay} of
+         * latency. {@link NonBlockingStatsDClient#flush()} and
+         * {@link NonBlockingStatsDClient#stop()} send lingering packets at once.
+         */
+        public Builder linger(long maxDelay, TimeUnit unit) {
+            this.lingerNanos = unit.toNanos(maxDelay);
+            return this;
+        }
+
+        /**
+         * How long {@link NonBlockingStatsDClient#flush()} waits for the
+         * senders to send their packets before giving up and reporting it to
+         * the error handler; 5 seconds by default.
+         */
+        public Builder flushTimeout(long timeout, TimeUnit unit) {
+            this.flushTimeoutNanos = unit.toNanos(timeout);
+            return this;
+        }
+
+        /**
+         * Packs datagrams in a direct buffer and writes them to a connected
+         * channel. The JDK then neither copies each packet into a temporary
+         * direct buffer nor checks the destination on every send. While the
+         * agent is down, sends may fail with PortUnreachableException, which
+         * goes to the error handler.
+         */
+        public Builder directSend(boolean directSend) {
+            this.directSend = directSend;
+            return this;
+        }
+
+        /**
+         * Packs consecutive timer and histogram values with the same name,
+         * sample rate and tags into one line, as in {@code aspect:1:2:3|h|#tags},
+         * so a hot aspect does not repeat its name and tags for every sample.
+         * Requires an agent that speaks DogStatsD protocol 1.1. Applies in the
+         * sender threads, so not to striped producers, which batch whole lines,
+         * nor when sending on the caller thread.
+         */
+        public Builder packValues(boolean packValues) {
+            this.packValues = packValues;
+            return this;
+        }
+
+        /**
+         * Defers opening the socket, allocating the ring and starting the
+         * sender thread until the first metric, so a client that is built but
+         * barely used, as in short jobs and tests, costs almost nothing. Host
+         * lookup and connection failures then go to the error handler instead
+         * of failing the build; the metrics are dropped and the start is
+         * retried at most once a second. The first thread to record a metric
+         * does the start; metrics other threads record meanwhile are dropped
+         * rather than made to wait. A {@link #transport(Transport)} stays open
+         * after a failed start, to be used on the next attempt.
+         */
+        public Builder lazyStart(boolean lazyStart) {
+            this.lazyStart = lazyStart;
+            return this;
+        }
+
+        /**
+         * Runs without a ring or sender thread: callers append their lines to
+         * a single packet buffer under a {@link ReentrantLock}, and the caller
+         * that fills it sends the packet. A partly filled packet is sent
+         * every {@code maxDelay} from the scheduler thread, or with a zero
+         * {@code maxDelay} only on {@link NonBlockingStatsDClient#flush()} and
+         * {@link NonBlockingStatsDClient#stop()}. Meant for low rates, where a
+         * sender thread and ring cost more than the occasional blocking send.
+         * The lock parks rather than pins, so virtual threads may record
+         * metrics. Cannot be combined with shards, destinations or a runtime.
+         */
+        public Builder sendOnCallerThread(long maxDelay, TimeUnit unit) {
+            if (maxDelay < 0) {
+                throw new IllegalArgumentException("maxDelay must not be negative");
+            }
+            this.callerThread = true;
+            /* Like stripedProducers, a delay under a millisecond still flushes, every millisecond */
+            this.stripeDelayMillis = maxDelay > 0 ? Math.max(1L, unit.toMillis(maxDelay)) : 0L;
+            return this;
+        }
+
+        /**
+         * Gives producers {@code stripes} batch buffers, picked by thread, instead
+         * of having every metric claim a slot on the shared ring. Each stripe
+         * goes to the ring as a single event once it holds a packet worth of
+         * lines, or after at most {@code maxDelay}. Worth it when many threads
+         * record metrics at once; it adds up to {@code maxDelay} of latency.
+         * A thread always writes to the same stripe, so its own metrics keep
+         * their order; metrics from different threads may be reordered.
+         */
+        public Builder stripedProducers(int stripes, long maxDelay, TimeUnit unit) {
+            if (Integer.bitCount(stripes) != 1) {
+                throw new IllegalArgumentException("stripes must be a power of 2");
+            }
+            this.stripes = stripes;
+            this.stripeDelayMillis = Math.max(1L, unit.toMillis(maxDelay));
+            return this;
+        }
+
+        /**
+         * Sums counter deltas locally and sends a single line per aspect and tags
+         * every {@code interval}. Pending sums are flushed on {@link NonBlockingStatsDClient#stop()}.
+         */
+        public Builder aggregateCounters(long interval, TimeUnit unit) {
+            this.counterIntervalMillis = unit.toMillis(interval);
+            return this;
+        }
+
+        /**
+         * Keeps only the last value of each gauge per aspect and tags, and sends
+         * a single line for every gauge set in the last {@code interval}, so
+         * gauges set on every request cost a table write instead of a line.
+         * Gauges not set since the previous flush are not sent again. Pending
+         * values are flushed on {@link NonBlockingStatsDClient#stop()}.
+         */
+        public Builder coalesceGauges(long interval, TimeUnit unit) {
+            this.gaugeIntervalMillis = unit.toMillis(interval);
+            return this;
+        }
+
+        /**
+         * Records timers and histograms into fixed-size local histograms and sends
+         * count, min, max, p50, p95 and p99 gauges per aspect and tags every
+         * {@code interval}, as {@code aspect.count}, {@code aspect.p99} and so on.
+         * Pending samples are flushed on {@link NonBlockingStatsDClient#stop()}.
+         */
+        public Builder aggregateHistograms(long interval, TimeUnit unit) {
+            this.histogramIntervalMillis = unit.toMillis(interval);
+            return this;
+        }
+
+        /**
+         * What to do with a metric when the ring is full;
+         * {@link OverflowPolicy#DROP_NEWEST} by default.
+         */
+        public Builder overflowPolicy(OverflowPolicy overflowPolicy) {
+            this.overflowPolicy = overflowPolicy;
+            return this;
+        }
+
+        /**
+         * How long {@link OverflowPolicy#BLOCK} waits for a free slot before
+         * dropping the metric, and how long {@link OverflowPolicy#DROP_OLDEST}
+         * gives the sender to skip the half of the ring it has just marked;
+         * 10 milliseconds by default.
+         */
+        public Builder blockTimeout(long timeout, TimeUnit unit) {
+            this.blockTimeoutNanos = unit.toNanos(timeout);
+            return this;
+        }
+
+        /**
+         * Minimum time between two summaries of dropped metrics sent to the
+         * error handler; 10 seconds by default. Drops not reported yet are
+         * reported on {@link NonBlockingStatsDClient#stop()}.
+         */
+        public Builder overflowReportInterval(long interval, TimeUnit unit) {
+            this.overflowReportIntervalNanos = unit.toNanos(interval);
+            return this;
+        }
+
+        /**
+         * Runs {@code shards} sender threads, each with its own ring of
+         * {@link #ringBufferSize(int)} slots, send buffer and socket. Metrics
+         * are routed by a hash of the aspect, so the lines of one aspect keep
+         * their order; striped producers are spread over the shards instead.
+         * Use it when a single sender thread saturates a core. The wait strategy
+         * is shared by all shards. Cannot be combined with {@link #transport(Transport)}.
+         */
+        public Builder senderShards(int shards) {
+            if (shards < 1) {
+                throw new IllegalArgumentException("shards must be at least 1");
+            }
+            this.senderShards = shards;
+            return this;
+        }
+
+        /**
+         * Adds a statsd server to fan out to, instead of {@code hostname:port};
+         * call it once per server. Every aspect is routed to one server by
+         * consistent hashing with virtual nodes, so each metric still
+         * aggregates in one place while the load spreads over the servers, and
+         * adding or removing a server only moves the aspects it owns. Each
+         * destination gets its own sender, as with {@link #senderShards(int)},
+         * and every client must list the same destinations to agree on routing.
+         * UDP only: cannot be combined with striped producers or another transport.
+         */
+        public Builder destination(String hostname, int port) {
+            this.destinations.add(InetSocketAddress.createUnresolved(hostname, port));
+            return this;
+        }
+
+        /**
+         * Resolves statsd host names with {@code resolver} instead of the
+         * JVM's {@link java.net.InetAddress#getByName(String)}.
+         */
+        public Builder resolver(AddressResolver resolver) {
+            this.resolver = resolver;
+            return this;
+        }
+
+        /**
+         * Looks the statsd host names up again every {@code ttl} on the
+         * background scheduler and switches every transport that supports
+         * {@link Transport#refresh(AddressResolver)} to a changed address, so
+         * the client follows an agent that moves without a restart. Lookup failures go to the error handler and keep the last
+         * known address. Off by default: the host is resolved once, at start.
+         */
+        public Builder dnsRefresh(long ttl, TimeUnit unit) {
+            this.dnsRefreshMillis = unit.toMillis(ttl);
+            return this;
+        }
+
+        /**
+         * Keeps the encoded tag suffix of up to {@code capacity} distinct tag
+         * sets, so a repeated set costs a hash lookup and a copy instead of
+         * being encoded again. Least recently used sets are evicted first,
+         * approximately. Worth it when tags come from a small, repeating set;
+         * with unbounded tag values every metric pays the lookup for nothing,
+         * which {@link StatsDClientStats#getTagCacheMisses()} shows.
+         */
+        public Builder tagCache(int capacity) {
+            if (capacity < 1) {
+                throw new IllegalArgumentException("capacity must be at least 1");
+            }
+            this.tagCacheCapacity = capacity;
+            return this;
+        }
+
+        /**
+         * Sends the client's own counters every {@code interval}, under the
+         * prefix, as {@code statsd.client.published}, {@code .dropped},
+         * {@code .packets_sent}, {@code .bytes_sent} and {@code .partial_sends}
+         * counters and {@code .ring.occupancy}, {@code .flush.avg_nanos} and
+         * {@code .sender.utilization} gauges.
+         */
+        public Builder selfTelemetry(long interval, TimeUnit unit) {
+            this.statsIntervalMillis = unit.toMillis(interval);
+            return this;
+        }
+
+        /**
+         * Registers the client with the platform MBean server as
+         * {@code io.galeb.statsd:name=<name>} until it is stopped.
+         */
+        public Builder jmx(String name) {
+            this.jmxName = name;
+            return this;
+        }
+
+        /**
+         * Publishes into a shared runtime's rings instead of starting senders
+         * of its own. The client keeps its own prefix, constant tags, error
+         * handler, aggregation, stripes, tag cache and overflow policy; the
+         * sender settings are the runtime's, and the ones set here are ignored.
+         * Stripes are rejected on a runtime with {@link #destination(String, int)}s,
+         * as they would route aspects past the consistent hash.
+         */
+        public Builder runtime(StatsDRuntime runtime) {
+            this.runtime = runtime;
+            return this;
+        }
+
+        /**
+         * Starts a runtime with this builder's sender settings, for clients
+         * that share it through {@link #runtime(StatsDRuntime)}. The prefix
+         * only applies to the runtime's own {@link #selfTelemetry} metrics.
+         */
+        public StatsDRuntime buildRuntime() throws StatsDClientException {
+            if (runtime != null) {
+                throw new IllegalArgumentException("A runtime cannot be built on another runtime");
+            }
+            if (callerThread) {
+                throw new IllegalArgumentException("A runtime needs its sender threads");
+            }
+            if (producerType == ProducerType.SINGLE) {
+                throw new IllegalArgumentException("A runtime is published to by several clients, so it needs ProducerType.MULTI");
+            }
+            return new StatsDRuntime(build(), errorHandler);
+        }
+
+        public NonBlockingStatsDClient build() throws StatsDClientException {
+            if (runtime != null && (handler != null || transport != null || unixSocketPath != null || !destinations.isEmpty())) {
+                throw new IllegalArgumentException("A client on a shared runtime sends through the runtime's transport");
+            }
+            if (runtime != null && stripes > 0 && runtime.sender.hashRing != null) {
+                throw new IllegalArgumentException("Stripes cannot publish to a runtime with destinations");
+            }
+            if (callerThread && (runtime != null || handler != null || stripes > 0 || senderShards > 1 || !destinations.isEmpty())) {
+                throw new IllegalArgumentException("Sending on the caller thread only combines with a single sender");
+            }
+            if (producerType == ProducerType.SINGLE && (counterIntervalMillis > 0 || gaugeIntervalMillis > 0
+                    || histogramIntervalMillis > 0 || stripes > 0 || overflowPolicy == OverflowPolicy.COALESCE
+                    || statsIntervalMillis > 0 || lingerNanos > 0)) {
+                throw new IllegalArgumentException("The scheduler publishes to the ring as well, so it needs ProducerType.MULTI");
+            }
+            if (transport != null && senderShards > 1) {
+                throw new IllegalArgumentException("A custom transport cannot be shared by several sender shards");
+            }
+            if (!destinations.isEmpty() && (transport != null || unixSocketPath != null || stripes > 0 || senderShards > 1)) {
+                throw new IllegalArgumentException("Destinations only combine with the default UDP sender, without stripes or shards");
+            }
+            /* The system resolver takes a null host name for the loopback address */
+            if (runtime == null && transport == null && unixSocketPath == null && destinations.isEmpty() && hostname == null) {
+                throw new IllegalArgumentException("A hostname is needed unless a transport, socket path or destinations are given");
             }
+            return new NonBlockingStatsDClient(this);
         }
     }
 
@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2017-2017 Globo.com
+ * All rights reserved.
+ *
+ * This source is subject to the Apache License, Version 2.0.
+ * Please see the LICENSE file for more information.
+ *
+ * Authors: See AUTHORS file
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.galeb.statsd;
+
+/**
+ * What a producer does when the ring buffer is full. Every lost metric is
+ * counted, and the error handler gets one {@link StatsDClientException}
+ * summing the losses per report interval instead of one exception per
+ * metric, so an overloaded client does not spend its time reporting.
+ */
+public enum OverflowPolicy {
+
+    /** Drops the metric being recorded; the default. */
+    DROP_NEWEST,
+
+    /**
+     * Marks the older half of the ring for the sender to skip, keeping the
+     * freshest values. The producer that marks it waits up to the block
+     * timeout for the sender to free a slot; while a marked half has not been
+     * freed yet, producers drop their metric at once instead of waiting on a
+     * stalled sender.
+     */
+    DROP_OLDEST,
+
+    /** Waits up to the block timeout for a slot, then drops the metric. */
+    BLOCK,
+
+    /**
+     * Sums counters that do not fit into a local table sent every second;
+     * other metrics are dropped.
+     */
+    COALESCE
+}
@@ -16,21 +16,92 @@
 
 package io.galeb.statsd;
 
+/**
+ * Methods beyond the original set have default implementations built on it,
+ * so existing implementations keep compiling: sample rates are ignored and
+ * every call is recorded, {@code long} values go to the {@code int} methods
+ * when they fit and are split or widened to {@code double} otherwise, and
+ * fractional times are rounded to whole milliseconds. Implementations that
+ * can do better override them.
+ */
 @SuppressWarnings("unused")
 public interface StatsDClient {
 
     void stop();
 
+    default void flush() {
+    }
+
     void count(String aspect, int delta, String... tags);
 
+    default void count(String aspect, int delta, double sampleRate, String... tags) {
+        count(aspect, delta, tags);
+    }
+
+    default void count(String aspect, long delta, String... tags) {
+        while (delta > Integer.MAX_VALUE) {
+            count(aspect, Integer.MAX_VALUE, tags);
+            delta -= Integer.MAX_VALUE;
+        }
+        while (delta < Integer.MIN_VALUE) {
+            count(aspect, Integer.MIN_VALUE, tags);
+            delta -= Integer.MIN_VALUE;
+        }
+        count(aspect, (int) delta, tags);
+    }
+
+    default void count(String aspect, long delta, double sampleRate, String... tags) {
+        count(aspect, delta, tags);
+    }
+
+    default void count(String aspect, long delta) {
+        count(aspect, delta, new String[0]);
+    }
+
+    default void count(String aspect, long delta, String tag) {
+        count(aspect, delta, new String[] { tag });
+    }
+
     void incrementCounter(String aspect, String... tags);
 
+    default void incrementCounter(String aspect, double sampleRate, String... tags) {
+        count(aspect, 1, sampleRate, tags);
+    }
+
     void increment(String aspect, String... tags);
 
+    default void increment(String aspect, double sampleRate, String... tags) {
+        incrementCounter(aspect, sampleRate, tags);
+    }
+
+    default void increment(String aspect) {
+        increment(aspect, new String[0]);
+    }
+
+    default void increment(String aspect, String tag) {
+        increment(aspect, new String[] { tag });
+    }
+
     void decrementCounter(String aspect, String... tags);
 
+    default void decrementCounter(String aspect, double sampleRate, String... tags) {
+        count(aspect, -1, sampleRate, tags);
+    }
+
     void decrement(String aspect, String... tags);
 
+    default void decrement(String aspect, double sampleRate, String... tags) {
+        decrementCounter(aspect, sampleRate, tags);
+    }
+
+    default void decrement(String aspect) {
+        decrement(aspect, new String[0]);
+    }
+
+    default void decrement(String aspect, String tag) {
+        decrement(aspect, new String[] { tag });
+    }
+
     void recordGaugeValue(String aspect, double value, String... tags);
 
     void gauge(String aspect, double value, String... tags);
@@ -39,16 +110,169 @@ public interface StatsDClient {
 
     void gauge(String aspect, int value, String... tags);
 
+    default void recordGaugeValue(String aspect, long value, String... tags) {
+        if (value == (int) value) {
+            recordGaugeValue(aspect, (int) value, tags);
+        } else {
+            recordGaugeValue(aspect, (double) value, tags);
+        }
+    }
+
+    default void gauge(String aspect, long value, String... tags) {
+        if (value == (int) value) {
+            gauge(aspect, (int) value, tags);
+        } else {
+            gauge(aspect, (double) value, tags);
+        }
+    }
+
+    default void gauge(String aspect, long value) {
+        gauge(aspect, value, new String[0]);
+    }
+
+    default void gauge(String aspect, long value, String tag) {
+        gauge(aspect, value, new String[] { tag });
+    }
+
+    default void gauge(String aspect, double value) {
+        gauge(aspect, value, new String[0]);
+    }
+
+    default void gauge(String aspect, double value, String tag) {
+        gauge(aspect, value, new String[] { tag });
+    }
+
     void recordExecutionTime(String aspect, long timeInMs, String... tags);
 
+    default void recordExecutionTime(String aspect, long timeInMs, double sampleRate, String... tags) {
+        recordExecutionTime(aspect, timeInMs, tags);
+    }
+
     void time(String aspect, long value, String... tags);
 
+    default void time(String aspect, long value, double sampleRate, String... tags) {
+        recordExecutionTime(aspect, value, sampleRate, tags);
+    }
+
+    default void recordExecutionTime(String aspect, double timeInMs, String... tags) {
+        recordExecutionTime(aspect, Math.round(timeInMs), tags);
+    }
+
+    default void recordExecutionTime(String aspect, double timeInMs, double sampleRate, String... tags) {
+        recordExecutionTime(aspect, timeInMs, tags);
+    }
+
+    default void time(String aspect, double value, String... tags) {
+        recordExecutionTime(aspect, value, tags);
+    }
+
+    default void time(String aspect, double value, double sampleRate, String... tags) {
+        recordExecutionTime(aspect, value, sampleRate, tags);
+    }
+
+    default void time(String aspect, long value) {
+        time(aspect, value, new String[0]);
+    }
+
+    default void time(String aspect, long value, String tag) {
+        time(aspect, value, new String[] { tag });
+    }
+
+    default void time(String aspect, double value) {
+        time(aspect, value, new String[0]);
+    }
+
+    default void time(String aspect, double value, String tag) {
+        time(aspect, value, new String[] { tag });
+    }
+
     void recordHistogramValue(String aspect, double value, String... tags);
 
+    default void recordHistogramValue(String aspect, double value, double sampleRate, String... tags) {
+        recordHistogramValue(aspect, value, tags);
+    }
+
     void histogram(String aspect, double value, String... tags);
 
+    default void histogram(String aspect, double value, double sampleRate, String... tags) {
+        recordHistogramValue(aspect, value, sampleRate, tags);
+    }
+
     void recordHistogramValue(String aspect, int value, String... tags);
 
+    default void recordHistogramValue(String aspect, int value, double sampleRate, String... tags) {
+        recordHistogramValue(aspect, value, tags);
+    }
+
     void histogram(String aspect, int value, String... tags);
 
+    default void histogram(String aspect, int value, double sampleRate, String... tags) {
+        recordHistogramValue(aspect, value, sampleRate, tags);
+    }
+
+    default void recordHistogramValue(String aspect, long value, String... tags) {
+        if (value == (int) value) {
+            recordHistogramValue(aspect, (int) value, tags);
+        } else {
+            recordHistogramValue(aspect, (double) value, tags);
+        }
+    }
+
+    default void recordHistogramValue(String aspect, long value, double sampleRate, String... tags) {
+        recordHistogramValue(aspect, value, tags);
+    }
+
+    default void histogram(String aspect, long value, String... tags) {
+        if (value == (int) value) {
+            histogram(aspect, (int) value, tags);
+        } else {
+            histogram(aspect, (double) value, tags);
+        }
+    }
+
+    default void histogram(String aspect, long value, double sampleRate, String... tags) {
+        recordHistogramValue(aspect, value, sampleRate, tags);
+    }
+
+    default void histogram(String aspect, long value) {
+        histogram(aspect, value, new String[0]);
+    }
+
+    default void histogram(String aspect, long value, String tag) {
+        histogram(aspect, value, new String[] { tag });
+    }
+
+    default void histogram(String aspect, double value) {
+        histogram(aspect, value, new String[0]);
+    }
+
+    default void histogram(String aspect, double value, String tag) {
+        histogram(aspect, value, new String[] { tag });
+    }
+
+    default StatsDCounter counter(String aspect, String... tags) {
+        final String[] bound = tags == null ? null : tags.clone();
+        return new StatsDCounter() {
+            @Override
+            public void count(long delta) {
+                StatsDClient.this.count(aspect, delta, bound);
+            }
+
+            @Override
+            public void increment() {
+                incrementCounter(aspect, bound);
+            }
+
+            @Override
+            public void decrement() {
+                decrementCounter(aspect, bound);
+            }
+        };
+    }
+
+    default StatsDTimer timer(String aspect, String... tags) {
+        final String[] bound = tags == null ? null : tags.clone();
+        return timeInMs -> recordExecutionTime(aspect, timeInMs, bound);
+    }
+
 }
@@ -25,6 +25,10 @@ public final class StatsDClientException extends RuntimeException {
         super();
     }
 
+    public StatsDClientException(String message) {
+        super(message);
+    }
+
     public StatsDClientException(String message, Throwable cause) {
         super(message, cause);
     }
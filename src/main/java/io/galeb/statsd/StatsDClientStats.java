@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2017-2017 Globo.com
+ * All rights reserved.
+ *
+ * This source is subject to the Apache License, Version 2.0.
+ * Please see the LICENSE file for more information.
+ *
+ * Authors: See AUTHORS file
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.galeb.statsd;
+
+/**
+ * Point-in-time view of a client's internal counters, from
+ * {@link NonBlockingStatsDClient#getStats()}. Counts are totals since the
+ * client started; diff two snapshots to get rates. Metrics lost before the
+ * ring show up in {@link #getDropped()}, packets the transport failed to
+ * write in {@link #getPartialSends()}.
+ */
+public final class StatsDClientStats {
+
+    private final int ringBufferSize;
+    private final long ringBufferOccupancy;
+    private final long published;
+    private final long dropped;
+    private final long packetsSent;
+    private final long bytesSent;
+    private final long partialSends;
+    private final long flushes;
+    private final long flushTimeNanos;
+    private final long senderBusyNanos;
+    private final long tagCacheHits;
+    private final long tagCacheMisses;
+
+    StatsDClientStats(int ringBufferSize, long ringBufferOccupancy, long published, long dropped,
+                      long packetsSent, long bytesSent, long partialSends,
+                      long flushes, long flushTimeNanos, long senderBusyNanos,
+                      long tagCacheHits, long tagCacheMisses) {
+        this.ringBufferSize = ringBufferSize;
+        this.ringBufferOccupancy = ringBufferOccupancy;
+        this.published = published;
+        this.dropped = dropped;
+        this.packetsSent = packetsSent;
+        this.bytesSent = bytesSent;
+        this.partialSends = partialSends;
+        this.flushes = flushes;
+        this.flushTimeNanos = flushTimeNanos;
+        this.senderBusyNanos = senderBusyNanos;
+        this.tagCacheHits = tagCacheHits;
+        this.tagCacheMisses = tagCacheMisses;
+    }
+
+    public int getRingBufferSize() {
+        return ringBufferSize;
+    }
+
+    /** Slots claimed by producers and not yet processed by the sender. */
+    public long getRingBufferOccupancy() {
+        return ringBufferOccupancy;
+    }
+
+    /** Metrics accepted into the ring or a producer stripe. */
+    public long getPublished() {
+        return published;
+    }
+
+    /**
+     * Metrics lost before reaching the transport: because the ring was full,
+     * skipped by {@link OverflowPolicy#DROP_OLDEST}, because a lazily
+     * started client could not start, because the transport threw on a
+     * packet sent from the caller thread, or discarded by the transport
+     * itself, see {@link Transport#dropped()}.
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    public long getPacketsSent() {
+        return packetsSent;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /** Packets the transport did not write in full, including sends that failed. */
+    public long getPartialSends() {
+        return partialSends;
+    }
+
+    /** Packets handed to the transport, sent in full or not. */
+    public long getFlushes() {
+        return flushes;
+    }
+
+    /** Time spent in the transport, summed over all flushes. */
+    public long getFlushTimeNanos() {
+        return flushTimeNanos;
+    }
+
+    /** Time the sender thread spent on batches of events rather than waiting for them. */
+    public long getSenderBusyNanos() {
+        return senderBusyNanos;
+    }
+
+    /** Tag sets found already encoded in the tag cache; zero without one. */
+    public long getTagCacheHits() {
+        return tagCacheHits;
+    }
+
+    /** Tag sets that had to be encoded despite the tag cache; zero without one. */
+    public long getTagCacheMisses() {
+        return tagCacheMisses;
+    }
+
+    @Override
+    public String toString() {
+        return "StatsDClientStats{" +
+                "ringBufferSize=" + ringBufferSize +
+                ", ringBufferOccupancy=" + ringBufferOccupancy +
+                ", published=" + published +
+                ", dropped=" + dropped +
+                ", packetsSent=" + packetsSent +
+                ", bytesSent=" + bytesSent +
+                ", partialSends=" + partialSends +
+                ", flushes=" + flushes +
+                ", flushTimeNanos=" + flushTimeNanos +
+                ", senderBusyNanos=" + senderBusyNanos +
+                ", tagCacheHits=" + tagCacheHits +
+                ", tagCacheMisses=" + tagCacheMisses +
+                '}';
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2017-2017 Globo.com
+ * All rights reserved.
+ *
+ * This source is subject to the Apache License, Version 2.0.
+ * Please see the LICENSE file for more information.
+ *
+ * Authors: See AUTHORS file
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.galeb.statsd;
+
+/**
+ * Sender side shared by several clients: one ring, sender thread and
+ * transport per shard, however many clients publish into it. An application
+ * with a client per subsystem keeps one sender thread instead of one per
+ * client, and one ring's worth of memory.
+ *
+ * <p>Start it with {@link NonBlockingStatsDClient.Builder#buildRuntime()}
+ * and attach clients with {@link #client(String, String...)} or
+ * {@link NonBlockingStatsDClient.Builder#runtime(StatsDRuntime)}. Stop the
+ * clients before the runtime, so their pending metrics are still sent.
+ */
+public final class StatsDRuntime {
+
+    final NonBlockingStatsDClient sender;
+    private final StatsDClientErrorHandler errorHandler;
+
+    StatsDRuntime(NonBlockingStatsDClient sender, StatsDClientErrorHandler errorHandler) {
+        this.sender = sender;
+        this.errorHandler = errorHandler;
+    }
+
+    /**
+     * Builds a client on this runtime with the given prefix and constant tags
+     * and the runtime's error handler.
+     */
+    public NonBlockingStatsDClient client(String prefix, String... constantTags) throws StatsDClientException {
+        return NonBlockingStatsDClient.builder()
+                .runtime(this)
+                .prefix(prefix)
+                .constantTags(constantTags)
+                .errorHandler(errorHandler)
+                .build();
+    }
+
+    /**
+     * Reads the ring and sender counters. Published and dropped metrics are
+     * counted by each client; here they only cover the runtime's own
+     * self telemetry.
+     */
+    public StatsDClientStats getStats() {
+        return sender.getStats();
+    }
+
+    /** Makes every sender send its partly filled packet, and waits for it up to the runtime's flush timeout. */
+    public void flush() {
+        sender.flush();
+    }
+
+    /** Drains the rings and stops the senders. */
+    public void stop() {
+        sender.stop();
+    }
+}
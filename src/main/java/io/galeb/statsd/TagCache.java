@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2017-2017 Globo.com
+ * All rights reserved.
+ *
+ * This source is subject to the Apache License, Version 2.0.
+ * Please see the LICENSE file for more information.
+ *
+ * Authors: See AUTHORS file
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.galeb.statsd;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Bounded map from tag arrays to their encoded "|#..." suffix, keyed on the
+ * array itself: buckets are found by Arrays.hashCode and entries matched by
+ * identity, then Arrays.equals, so a hit allocates nothing. Hits are a
+ * lock-free walk of a bucket chain; misses are inserted under a lock,
+ * evicting with the CLOCK algorithm: the hand sweeps the slots, sparing
+ * entries read since its last pass, so a steady set of tags stays cached
+ * while one-off sets cycle out. A miss that finds the lock taken just goes
+ * uncached.
+ */
+final class TagCache {
+
+    private final AtomicReferenceArray<Entry> buckets;
+    private final int mask;
+    private final Entry[] slots;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private int hand;
+    private int size;
+
+    TagCache(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        final int bucketCount = Integer.highestOneBit(Math.max(1, capacity * 2 - 1)) << 1;
+        this.buckets = new AtomicReferenceArray<>(bucketCount);
+        this.mask = bucketCount - 1;
+        this.slots = new Entry[capacity];
+    }
+
+    /* Returns null on a miss */
+    byte[] get(String[] tags) {
+        final Entry entry = find(tags, hash(tags));
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        if (!entry.referenced) {
+            entry.referenced = true;
+        }
+        return entry.rendered;
+    }
+
+    void put(String[] tags, byte[] rendered) {
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            final int hash = hash(tags);
+            if (find(tags, hash) != null) {
+                return;
+            }
+            if (size < slots.length) {
+                hand = size++;
+            } else {
+                while (slots[hand].referenced) {
+                    slots[hand].referenced = false;
+                    hand = (hand + 1) % slots.length;
+                }
+                unlink(slots[hand]);
+            }
+            final int bucket = hash & mask;
+            final Entry entry = new Entry(tags.clone(), hash, rendered, buckets.get(bucket));
+            slots[hand] = entry;
+            buckets.set(bucket, entry);
+            hand = (hand + 1) % slots.length;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* Spread like HashMap, as only the low bits pick the bucket */
+    private static int hash(String[] tags) {
+        final int hash = Arrays.hashCode(tags);
+        return hash ^ (hash >>> 16);
+    }
+
+    private Entry find(String[] tags, int hash) {
+        for (Entry entry = buckets.get(hash & mask); entry != null; entry = entry.next) {
+            if (entry.hash == hash && (entry.tags == tags || Arrays.equals(entry.tags, tags))) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /* Called under the lock; a reader standing on the entry still follows its next link */
+    private void unlink(Entry victim) {
+        final int bucket = victim.hash & mask;
+        Entry entry = buckets.get(bucket);
+        if (entry == victim) {
+            buckets.set(bucket, victim.next);
+            return;
+        }
+        while (entry.next != victim) {
+            entry = entry.next;
+        }
+        entry.next = victim.next;
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static final class Entry {
+
+        final String[] tags;
+        final int hash;
+        final byte[] rendered;
+        volatile Entry next;
+        volatile boolean referenced;
+
+        Entry(String[] tags, int hash, byte[] rendered, Entry next) {
+            this.tags = tags;
+            this.hash = hash;
+            this.rendered = rendered;
+            this.next = next;
+        }
+    }
+}
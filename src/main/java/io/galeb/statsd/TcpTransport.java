@@ -0,0 +1,290 @@
+/*
+ * Copyright (c) 2017-2017 Globo.com
+ * All rights reserved.
+ *
+ * This source is subject to the Apache License, Version 2.0.
+ * Please see the LICENSE file for more information.
+ *
+ * Authors: See AUTHORS file
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.galeb.statsd;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Newline framed TCP, for hops where UDP loss is not acceptable.
+ *
+ * <p>Packets are appended to a bounded buffer and written in large batches:
+ * at the end of every sender batch, or as soon as the buffer is half full.
+ * The socket never blocks the sender thread. Connecting is non-blocking and
+ * retried with exponential backoff from 100 milliseconds up to 30 seconds.
+ * The host name is resolved once, on the constructing thread, and again only
+ * by {@link #refresh(AddressResolver)}, so reconnecting never waits on a
+ * lookup; a changed address is used from the next connection on. A host that
+ * could not be resolved yet is looked up again on each connection attempt,
+ * as nothing can be sent until it resolves. While
+ * disconnected the buffer keeps filling; packets that do not fit are dropped,
+ * counted in {@link #dropped()}, and reported as a single summary at most
+ * once per reconnect backoff. When a connection breaks in the middle of a
+ * line, the rest of that line is discarded so the agent never sees half a
+ * metric.
+ *
+ * <p>{@link #close()} gives the agent up to two seconds to take what is still
+ * buffered, and drops and reports the rest, or everything buffered when it
+ * was not connected.
+ */
+public final class TcpTransport implements Transport {
+
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+
+    private static final long MIN_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long MAX_BACKOFF_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final long CLOSE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(2);
+    private static final long CLOSE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final String hostname;
+    private final int port;
+    private final ByteBuffer pending;
+    private final AddressResolver resolver;
+    private volatile InetSocketAddress resolved;
+
+    private SocketChannel channel;
+    private long nextAttemptNanos = System.nanoTime();
+    private long backoffNanos = MIN_BACKOFF_NANOS;
+    private boolean midLine;
+    private volatile long dropped;
+    private long unreportedPackets;
+    private long unreportedBytes;
+    private long nextDropReportNanos = System.nanoTime();
+
+    public TcpTransport(String hostname, int port) {
+        this(hostname, port, DEFAULT_BUFFER_SIZE);
+    }
+
+    public TcpTransport(String hostname, int port, int bufferSize) {
+        this(hostname, port, bufferSize, AddressResolver.SYSTEM);
+    }
+
+    public TcpTransport(String hostname, int port, int bufferSize, AddressResolver resolver) {
+        if (hostname == null) {
+            throw new IllegalArgumentException("hostname can't be null");
+        }
+        this.hostname = hostname;
+        this.port = port;
+        this.pending = ByteBuffer.allocateDirect(bufferSize);
+        this.resolver = resolver;
+        InetSocketAddress initial;
+        try {
+            initial = new InetSocketAddress(resolver.resolve(hostname), port);
+        } catch (UnknownHostException e) {
+            initial = InetSocketAddress.createUnresolved(hostname, port);
+        }
+        this.resolved = initial;
+    }
+
+    @Override
+    public void refresh(AddressResolver resolver) throws UnknownHostException {
+        final InetSocketAddress latest = AddressResolver.refresh(resolver, hostname, port, resolved);
+        if (latest != null) {
+            resolved = latest;
+        }
+    }
+
+    @Override
+    public void send(ByteBuffer packet) throws IOException {
+        int size = packet.remaining();
+        if (pending.remaining() < size + 1) {
+            write();
+            if (pending.remaining() < size + 1) {
+                drop(packet);
+                reportDropsWhenDue();
+                return;
+            }
+        }
+        pending.put(packet).put((byte) '\n');
+        if (pending.position() >= pending.capacity() / 2) {
+            write();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        write();
+        reportDropsWhenDue();
+    }
+
+    /** Metrics in the packets and lines this transport has dropped so far. */
+    @Override
+    public long dropped() {
+        return dropped;
+    }
+
+    private void drop(ByteBuffer packet) {
+        int lines = 1;
+        for (int i = packet.position(); i < packet.limit(); i++) {
+            if (packet.get(i) == '\n') {
+                lines++;
+            }
+        }
+        dropped += lines;
+        unreportedPackets++;
+        unreportedBytes += packet.remaining();
+        packet.position(packet.limit());
+    }
+
+    /* One summary per backoff interval, rather than an error for every packet during an outage */
+    private void reportDropsWhenDue() throws IOException {
+        final long now = System.nanoTime();
+        if (unreportedPackets == 0 || now - nextDropReportNanos < 0) {
+            return;
+        }
+        final long packets = unreportedPackets;
+        final long bytes = unreportedBytes;
+        unreportedPackets = 0;
+        unreportedBytes = 0;
+        nextDropReportNanos = now + backoffNanos;
+        throw new IOException(String.format(
+                "Dropped %d packets, %d bytes, for %s:%d, %d bytes are already waiting to be sent",
+                packets, bytes, hostname, port, pending.position()));
+    }
+
+    private void write() throws IOException {
+        if (pending.position() == 0 || !connected()) {
+            return;
+        }
+        pending.flip();
+        try {
+            channel.write(pending);
+        } catch (IOException e) {
+            updateMidLine();
+            pending.compact();
+            disconnect();
+            throw e;
+        }
+        updateMidLine();
+        pending.compact();
+    }
+
+    /* Whether the bytes written so far end inside a line; a write that sent nothing leaves it as it was */
+    private void updateMidLine() {
+        if (pending.position() > 0) {
+            midLine = pending.get(pending.position() - 1) != '\n';
+        }
+    }
+
+    private boolean connected() throws IOException {
+        if (channel == null) {
+            if (System.nanoTime() - nextAttemptNanos < 0) {
+                return false;
+            }
+            if (resolved.isUnresolved()) {
+                try {
+                    refresh(resolver);
+                } catch (UnknownHostException e) {
+                    disconnect();
+                    throw e;
+                }
+            }
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.connect(resolved);
+            } catch (IOException | UnresolvedAddressException e) {
+                disconnect();
+                throw e instanceof IOException ? (IOException) e : new IOException("Could not resolve " + hostname, e);
+            }
+        }
+        if (channel.isConnected()) {
+            return true;
+        }
+        try {
+            if (channel.finishConnect()) {
+                backoffNanos = MIN_BACKOFF_NANOS;
+                return true;
+            }
+            return false;
+        } catch (IOException e) {
+            disconnect();
+            throw e;
+        }
+    }
+
+    private void disconnect() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // the connection is being dropped anyway
+            }
+            channel = null;
+        }
+        if (midLine) {
+            discardPartialLine();
+        }
+        nextAttemptNanos = System.nanoTime() + backoffNanos;
+        backoffNanos = Math.min(backoffNanos * 2, MAX_BACKOFF_NANOS);
+    }
+
+    private void discardPartialLine() {
+        dropped++;
+        int end = 0;
+        while (end < pending.position() && pending.get(end) != '\n') {
+            end++;
+        }
+        pending.flip();
+        pending.position(Math.min(end + 1, pending.limit()));
+        pending.compact();
+        midLine = false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        int left = pending.position();
+        try {
+            if (channel != null && channel.isConnected() && left > 0) {
+                pending.flip();
+                final long deadline = System.nanoTime() + CLOSE_TIMEOUT_NANOS;
+                while (pending.hasRemaining() && System.nanoTime() - deadline < 0) {
+                    if (channel.write(pending) == 0) {
+                        LockSupport.parkNanos(CLOSE_PARK_NANOS);
+                    }
+                }
+                left = pending.remaining();
+            } else {
+                pending.flip();
+            }
+            /* Every buffered line ends in a newline */
+            for (int i = pending.position(); i < pending.limit(); i++) {
+                if (pending.get(i) == '\n') {
+                    dropped++;
+                }
+            }
+        } finally {
+            pending.clear();
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        }
+        if (left > 0) {
+            throw new IOException(String.format(
+                    "Dropped %d bytes for %s:%d that the agent did not take before closing", left, hostname, port));
+        }
+        nextDropReportNanos = System.nanoTime();
+        reportDropsWhenDue();
+    }
+}
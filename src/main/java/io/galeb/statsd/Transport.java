@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2017-2017 Globo.com
+ * All rights reserved.
+ *
+ * This source is subject to the Apache License, Version 2.0.
+ * Please see the LICENSE file for more information.
+ *
+ * Authors: See AUTHORS file
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.galeb.statsd;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+/**
+ * Where a {@link NonBlockingStatsDClient} sends its packets. A packet is a run
+ * of newline separated lines between the buffer's position and limit, never
+ * ending in a newline; implementations decide how packets are framed, batched
+ * and delivered.
+ *
+ * <p>The client never calls {@link #send(ByteBuffer)}, {@link #flush()} or
+ * {@link #close()} concurrently, and hands the transport from one thread to
+ * the next safely, but these methods do not all run on one thread:
+ * {@code send} and {@code flush} run on the sender thread, or, with
+ * {@link NonBlockingStatsDClient.Builder#sendOnCallerThread(long, java.util.concurrent.TimeUnit)},
+ * on whichever producer or scheduler thread holds the client's send lock;
+ * {@code close} runs on the thread that calls
+ * {@link NonBlockingStatsDClient#stop()}, on the producer whose lazy start
+ * failed, or on the thread building the client when an eager start fails.
+ * The one overlap: {@code stop} waits 30 seconds for a sender stuck in
+ * {@code send}, then closes the transport anyway.
+ * State only these three methods touch needs no synchronization of its own.
+ * {@link #refresh(AddressResolver)} and {@link #dropped()} are called from
+ * other threads, while the others may be running. The client owns its
+ * transport and closes it on {@link NonBlockingStatsDClient#stop()}.
+ */
+public interface Transport extends Closeable {
+
+    /**
+     * Sends or buffers one packet. Failures are thrown and reported to the
+     * client's error handler; the packet is then lost.
+     */
+    void send(ByteBuffer packet) throws IOException;
+
+    /**
+     * Called at the end of each batch of metrics the sender drains, so a
+     * transport that holds packets back can write them out.
+     */
+    default void flush() throws IOException {
+    }
+
+    /**
+     * Looks the destination up again, for
+     * {@link NonBlockingStatsDClient.Builder#dnsRefresh(long, java.util.concurrent.TimeUnit)}.
+     * Called from the client's scheduler rather than the sending thread: it
+     * may block on the lookup, and must hand the result over to the sender
+     * safely. Does nothing by default.
+     */
+    default void refresh(AddressResolver resolver) throws UnknownHostException {
+    }
+
+    /**
+     * Metrics the transport took and later discarded without reporting them
+     * as a failed send, such as packets that did not fit in its buffer; they
+     * are added to {@link StatsDClientStats#getDropped()}. Read from any
+     * thread. Zero by default.
+     */
+    default long dropped() {
+        return 0L;
+    }
+
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2017-2017 Globo.com
+ * All rights reserved.
+ *
+ * This source is subject to the Apache License, Version 2.0.
+ * Please see the LICENSE file for more information.
+ *
+ * Authors: See AUTHORS file
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.galeb.statsd;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Stream-mode Unix domain socket, with every packet terminated by a newline
+ * so consecutive packets never merge into one line. Writes block, which
+ * pushes back on the sender instead of dropping packets like UDP does; once
+ * the ring fills up, producers drop as usual. The socket is connected on the
+ * first send and reconnected on the next send after a failure, so the agent
+ * may start after the client.
+ *
+ * <p>UnixDomainSocketAddress and SocketChannel.open(ProtocolFamily) only exist
+ * since Java 16, so they are looked up reflectively to keep running on 8.
+ */
+public final class UnixSocketTransport implements Transport {
+
+    private final SocketAddress address;
+    private final ByteBuffer newline = ByteBuffer.wrap(new byte[] { '\n' });
+    private final ByteBuffer[] frame = new ByteBuffer[2];
+    private SocketChannel channel;
+
+    public UnixSocketTransport(String path) {
+        this.address = unixAddress(path);
+    }
+
+    static boolean isSupported() {
+        try {
+            Class.forName("java.net.UnixDomainSocketAddress");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    static SocketAddress unixAddress(String path) {
+        try {
+            return (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress")
+                    .getMethod("of", String.class)
+                    .invoke(null, path);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Unix domain sockets require Java 16 or later", e);
+        }
+    }
+
+    @Override
+    public void send(ByteBuffer packet) throws IOException {
+        if (channel == null) {
+            channel = open();
+        }
+        newline.rewind();
+        frame[0] = packet;
+        frame[1] = newline;
+        try {
+            while (newline.hasRemaining()) {
+                channel.write(frame);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        } finally {
+            frame[0] = null;
+        }
+    }
+
+    private SocketChannel open() throws IOException {
+        SocketChannel opened;
+        try {
+            opened = (SocketChannel) SocketChannel.class
+                    .getMethod("open", ProtocolFamily.class)
+                    .invoke(null, StandardProtocolFamily.valueOf("UNIX"));
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (ReflectiveOperationException | IllegalArgumentException e) {
+            throw new UnsupportedOperationException("Unix domain sockets require Java 16 or later", e);
+        }
+        try {
+            opened.connect(address);
+        } catch (IOException e) {
+            opened.close();
+            throw e;
+        }
+        return opened;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            try {
+                channel.close();
+            } finally {
+                channel = null;
+            }
+        }
+    }
+}
@@ -20,6 +20,7 @@ package io.galeb.statsd;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.util.ArrayList;
 import java.util.List;
@@ -29,7 +30,11 @@ final class DummyStatsDServer {
     private final DatagramSocket server;
 
     public DummyStatsDServer(int port) throws SocketException {
-        server = new DatagramSocket(port);
+        this(new InetSocketAddress(port));
+    }
+
+    public DummyStatsDServer(InetSocketAddress address) throws SocketException {
+        server = new DatagramSocket(address);
         Thread thread = new Thread(() -> {
             while(!server.isClosed()) {
                 try {
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2017-2017 Globo.com
+ * All rights reserved.
+ *
+ * This source is subject to the Apache License, Version 2.0.
+ * Please see the LICENSE file for more information.
+ *
+ * Authors: See AUTHORS file
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.galeb.statsd;
+
+import java.nio.charset.StandardCharsets;
+import java.text.NumberFormat;
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class EventTest {
+
+    @Test public void
+    writes_longs_as_ascii() {
+        for (long value : new long[] { 0, 7, -7, 10, 1234567890123L, Long.MAX_VALUE, Long.MIN_VALUE }) {
+            assertThat(written(new NonBlockingStatsDClient.Event().put(value)), equalTo(Long.toString(value)));
+        }
+    }
+
+    @Test public void
+    writes_doubles_like_number_format() {
+        NumberFormat format = NumberFormat.getInstance(Locale.US);
+        format.setGroupingUsed(false);
+        format.setMaximumFractionDigits(6);
+        Random random = new Random(42);
+        double[] fixed = { 0, 1, -1, 0.423, 0.1 + 0.2, 123.456789, 123.4567891, 0.0078125, 1e-7, 999999999.9999999,
+                1e9, 123456789012345.67, 1e20, -4.5e15, 0x1p53, 0x1p53 + 2, 7.8422100924653235E17, Long.MAX_VALUE };
+        for (double value : fixed) {
+            assertThat(written(new NonBlockingStatsDClient.Event().put(value)), equalTo(format.format(value)));
+        }
+        for (int i = 0; i < 100000; i++) {
+            double value = (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(30) - 8);
+            String expected = format.format(value);
+            if (!expected.equals("-0")) {
+                assertThat(written(new NonBlockingStatsDClient.Event().put(value)), equalTo(expected));
+            }
+        }
+    }
+
+    @Test public void
+    writes_negative_zero_and_non_finite_doubles_readably() {
+        assertThat(written(new NonBlockingStatsDClient.Event().put(-0.0)), equalTo("0"));
+        assertThat(written(new NonBlockingStatsDClient.Event().put(-1e-9)), equalTo("0"));
+        assertThat(written(new NonBlockingStatsDClient.Event().put(Double.NaN)), equalTo("NaN"));
+        assertThat(written(new NonBlockingStatsDClient.Event().put(Double.NEGATIVE_INFINITY)), equalTo("-Infinity"));
+    }
+
+    @Test public void
+    encodes_strings_as_utf8() {
+        String value = "ascii.é.€.😀.\uD800";
+        assertThat(written(new NonBlockingStatsDClient.Event().put(value)),
+                equalTo(new String(value.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8)));
+    }
+
+    @Test public void
+    grows_past_initial_capacity() {
+        NonBlockingStatsDClient.Event event = new NonBlockingStatsDClient.Event();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            event.put("metric").put(i).put((byte) ',');
+            expected.append("metric").append(i).append(',');
+        }
+        assertThat(written(event), equalTo(expected.toString()));
+    }
+
+    private static String written(NonBlockingStatsDClient.Event event) {
+        return new String(event.bytes(), 0, event.length(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2017-2017 Globo.com
+ * All rights reserved.
+ *
+ * This source is subject to the Apache License, Version 2.0.
+ * Please see the LICENSE file for more information.
+ *
+ * Authors: See AUTHORS file
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.galeb.statsd;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+
+public class GaugeAggregatorTest {
+
+    @Test public void
+    sends_only_gauges_set_since_the_last_flush() {
+        GaugeAggregator aggregator = new GaugeAggregator();
+        List<String> sent = new ArrayList<>();
+        aggregator.set("a", 1L, null);
+        aggregator.set("b", 2.5, null);
+        aggregator.set("a", 3L, null);
+
+        aggregator.flush((key, value) -> sent.add(key.aspect + "=" + value), (key, value) -> sent.add(key.aspect + "=" + value));
+        assertThat(sent, contains("a=3", "b=2.5"));
+
+        sent.clear();
+        aggregator.set("b", 4L, null);
+        aggregator.flush((key, value) -> sent.add(key.aspect + "=" + value), (key, value) -> sent.add(key.aspect + "=" + value));
+        assertThat(sent, contains("b=4"));
+
+        sent.clear();
+        aggregator.flush((key, value) -> sent.add(key.aspect + "=" + value), (key, value) -> sent.add(key.aspect + "=" + value));
+        assertThat(sent, empty());
+    }
+
+    @Test public void
+    sends_a_value_set_while_a_flush_runs_on_the_next_flush() {
+        GaugeAggregator aggregator = new GaugeAggregator();
+        List<String> sent = new ArrayList<>();
+        aggregator.set("a", 1L, null);
+
+        /* The set lands after the flush has read the entry, as a writer that stalled would */
+        aggregator.flush((key, value) -> {
+            sent.add(key.aspect + "=" + value);
+            aggregator.set("a", 2L, null);
+        }, (key, value) -> sent.add(key.aspect + "=" + value));
+        aggregator.flush((key, value) -> sent.add(key.aspect + "=" + value), (key, value) -> sent.add(key.aspect + "=" + value));
+
+        assertThat(sent, contains("a=1", "a=2"));
+    }
+
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2017-2017 Globo.com
+ * All rights reserved.
+ *
+ * This source is subject to the Apache License, Version 2.0.
+ * Please see the LICENSE file for more information.
+ *
+ * Authors: See AUTHORS file
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.galeb.statsd;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+
+public class HashRingTest {
+
+    @Test public void
+    spreads_keys_evenly_over_nodes() {
+        HashRing ring = new HashRing(Arrays.asList("a:8125", "b:8125", "c:8125"));
+        int[] counts = new int[3];
+        for (int i = 0; i < 30000; i++) {
+            counts[ring.owner("metric." + i)]++;
+        }
+
+        for (int count : counts) {
+            assertThat(count, greaterThan(8000));
+            assertThat(count, lessThan(12000));
+        }
+    }
+
+    @Test public void
+    only_moves_keys_of_a_removed_node() {
+        HashRing three = new HashRing(Arrays.asList("a:8125", "b:8125", "c:8125"));
+        HashRing two = new HashRing(Arrays.asList("a:8125", "b:8125"));
+        for (int i = 0; i < 10000; i++) {
+            String key = "metric." + i;
+            int owner = three.owner(key);
+            if (owner != 2) {
+                assertThat(two.owner(key), equalTo(owner));
+            }
+        }
+    }
+
+    @Test public void
+    routes_null_keys() {
+        HashRing ring = new HashRing(Arrays.asList("a:8125", "b:8125"));
+        assertThat(ring.owner(null), equalTo(ring.owner(null)));
+    }
+}
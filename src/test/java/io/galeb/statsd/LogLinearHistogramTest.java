@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2017-2017 Globo.com
+ * All rights reserved.
+ *
+ * This source is subject to the Apache License, Version 2.0.
+ * Please see the LICENSE file for more information.
+ *
+ * Authors: See AUTHORS file
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.galeb.statsd;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+
+public class LogLinearHistogramTest {
+
+    @Test public void
+    returns_no_snapshot_when_empty() {
+        assertThat(new LogLinearHistogram().snapshotAndReset(), nullValue());
+    }
+
+    @Test public void
+    tracks_exact_count_min_and_max() {
+        LogLinearHistogram histogram = new LogLinearHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+
+        LogLinearHistogram.Snapshot snapshot = histogram.snapshotAndReset();
+
+        assertThat(snapshot.count(), equalTo(1000L));
+        assertThat(snapshot.min(), equalTo(1.0));
+        assertThat(snapshot.max(), equalTo(1000.0));
+    }
+
+    @Test public void
+    counts_the_samples_a_sample_rate_left_out() {
+        LogLinearHistogram histogram = new LogLinearHistogram();
+        for (int i = 0; i < 3; i++) {
+            histogram.record(5, 0.3);
+        }
+
+        LogLinearHistogram.Snapshot snapshot = histogram.snapshotAndReset();
+
+        assertThat(snapshot.count(), equalTo(10L));
+        assertThat(snapshot.percentile(100), equalTo(5.0));
+    }
+
+    @Test public void
+    estimates_percentiles_within_bucket_error() {
+        LogLinearHistogram histogram = new LogLinearHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+
+        LogLinearHistogram.Snapshot snapshot = histogram.snapshotAndReset();
+
+        assertThat(snapshot.percentile(50), closeTo(500, 500 * 0.07));
+        assertThat(snapshot.percentile(95), closeTo(950, 950 * 0.07));
+        assertThat(snapshot.percentile(99), closeTo(990, 990 * 0.07));
+    }
+
+    @Test public void
+    clamps_percentiles_to_recorded_range() {
+        LogLinearHistogram histogram = new LogLinearHistogram();
+        histogram.record(-5);
+        histogram.record(0);
+        histogram.record(1e15);
+
+        LogLinearHistogram.Snapshot snapshot = histogram.snapshotAndReset();
+
+        assertThat(snapshot.percentile(1), equalTo(-5.0));
+        assertThat(snapshot.percentile(100), equalTo(1e15));
+    }
+
+    @Test public void
+    resets_after_snapshot() {
+        LogLinearHistogram histogram = new LogLinearHistogram();
+        histogram.record(42);
+        histogram.snapshotAndReset();
+        histogram.record(7);
+
+        LogLinearHistogram.Snapshot snapshot = histogram.snapshotAndReset();
+
+        assertThat(snapshot.count(), equalTo(1L));
+        assertThat(snapshot.min(), equalTo(7.0));
+        assertThat(snapshot.max(), equalTo(7.0));
+    }
+
+    @Test(timeout=10000L) public void
+    keeps_snapshots_finite_while_values_are_recorded() throws Exception {
+        final LogLinearHistogram histogram = new LogLinearHistogram();
+        final AtomicBoolean recording = new AtomicBoolean(true);
+        final Thread[] recorders = new Thread[2];
+        for (int i = 0; i < recorders.length; i++) {
+            recorders[i] = new Thread(() -> {
+                while (recording.get()) {
+                    histogram.record(5);
+                }
+            });
+            recorders[i].start();
+        }
+        try {
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(500);
+            while (System.nanoTime() - deadline < 0) {
+                LogLinearHistogram.Snapshot snapshot = histogram.snapshotAndReset();
+                if (snapshot == null) {
+                    continue;
+                }
+                assertThat(Double.isInfinite(snapshot.min()), equalTo(false));
+                assertThat(Double.isInfinite(snapshot.max()), equalTo(false));
+                assertThat(Double.isInfinite(snapshot.percentile(50)), equalTo(false));
+                assertThat(Double.isInfinite(snapshot.percentile(99)), equalTo(false));
+            }
+        } finally {
+            recording.set(false);
+            for (Thread recorder : recorders) {
+                recorder.join();
+            }
+        }
+    }
+
+    @Test public void
+    keeps_bucket_bounds_monotonic() {
+        for (int bucket = 1; bucket < LogLinearHistogram.BUCKETS - 1; bucket++) {
+            double lower = LogLinearHistogram.lowerBoundOf(bucket);
+            assertThat(LogLinearHistogram.bucketOf(lower), equalTo(bucket));
+            assertThat(LogLinearHistogram.bucketOf(Math.nextDown(LogLinearHistogram.lowerBoundOf(bucket + 1))), equalTo(bucket));
+        }
+    }
+}
@@ -16,24 +16,64 @@
 
 package io.galeb.statsd;
 
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
 import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
 
 import com.lmax.disruptor.EventHandler;
+import com.lmax.disruptor.YieldingWaitStrategy;
+import com.lmax.disruptor.dsl.ProducerType;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.anyOf;
+import static org.hamcrest.Matchers.closeTo;
 import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.hasItems;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Matchers.anyLong;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 @RunWith(MockitoJUnitRunner.class)
@@ -114,6 +154,56 @@ public class NonBlockingStatsDClientTest {
         assertThat(server.messagesReceived(), contains("my.prefix.mycount:24|c|#baz,foo:bar"));
     }
 
+    @Test(timeout=5000L) public void
+    sends_sampled_counter_value_to_statsd_with_tags() throws Exception {
+
+
+        client.count("mycount", 24, 0.999999, "foo:bar", "baz");
+        server.waitForMessage();
+
+        assertThat(server.messagesReceived(), contains("my.prefix.mycount:24|c|@0.999999|#baz,foo:bar"));
+    }
+
+    @Test(timeout=5000L) public void
+    drops_counter_value_rejected_by_sample_rate() throws Exception {
+
+
+        client.count("dropped", 24, 0.0);
+        client.count("mycount", 24, 1.0);
+        server.waitForMessage();
+
+        assertThat(server.messagesReceived(), contains("my.prefix.mycount:24|c"));
+    }
+
+    @Test(timeout=5000L) public void
+    sends_sampled_timer_to_statsd() throws Exception {
+
+
+        client.recordExecutionTime("mytime", 123, 0.999990);
+        server.waitForMessage();
+
+        assertThat(server.messagesReceived(), contains("my.prefix.mytime:123|ms|@0.99999"));
+    }
+
+    @Test(timeout=5000L) public void
+    sends_negative_long_timer_to_statsd() throws Exception {
+
+
+        client.recordExecutionTime("mytime", Long.MIN_VALUE);
+        server.waitForMessage();
+
+        assertThat(server.messagesReceived(), contains("my.prefix.mytime:-9223372036854775808|ms"));
+    }
+
+    @Test public void
+    encodes_event_as_utf8_in_place() throws Exception {
+
+        NonBlockingStatsDClient.Event event = new NonBlockingStatsDClient.Event();
+        event.put("aç€😀").put((byte) ':').put(-42L);
+
+        assertThat(new String(event.bytes(), 0, event.length(), "UTF-8"), equalTo("aç€😀:-42"));
+    }
+
     @Test(timeout=5000L) public void
     sends_counter_increment_to_statsd() throws Exception {
 
@@ -337,4 +427,1213 @@ public class NonBlockingStatsDClientTest {
         assertThat(server.messagesReceived(), contains("top.level.value:423|g"));
     }
 
+    @Test(timeout=5000L) public void
+    sends_aggregated_counters_once_per_key() throws Exception {
+
+        final NonBlockingStatsDClient aggregating_client = NonBlockingStatsDClient.builder()
+                .prefix("my.prefix")
+                .hostname("localhost")
+                .port(STATSD_SERVER_PORT)
+                .aggregateCounters(1, TimeUnit.HOURS)
+                .build();
+        aggregating_client.increment("requests");
+        aggregating_client.increment("requests");
+        aggregating_client.count("requests", 40);
+        aggregating_client.increment("requests", "foo:bar");
+        aggregating_client.decrement("requests", "foo:bar");
+        aggregating_client.increment("requests", "baz");
+        aggregating_client.stop();
+        server.waitForMessage();
+
+        assertThat(server.messagesReceived(), containsInAnyOrder("my.prefix.requests:42|c", "my.prefix.requests:1|c|#baz"));
+    }
+
+    @Test(timeout=5000L) public void
+    scales_sampled_aggregates_by_the_sample_rate_without_rounding_each_sample() throws Exception {
+
+        final InMemoryTransport transport = new InMemoryTransport();
+        final NonBlockingStatsDClient aggregating_client = NonBlockingStatsDClient.builder()
+                .transport(transport)
+                .aggregateCounters(1, TimeUnit.HOURS)
+                .aggregateHistograms(1, TimeUnit.HOURS)
+                .build();
+        for (int i = 0; i < 100000; i++) {
+            aggregating_client.increment("requests", 0.3);
+            aggregating_client.recordExecutionTime("latency", 5L, 0.3);
+        }
+        aggregating_client.stop();
+
+        /* About 30000 samples are kept: each stands for 3.33 calls, the estimate is off by about 500 */
+        long requests = 0;
+        long latencies = 0;
+        for (String line : transport.lines()) {
+            if (line.startsWith("requests:")) {
+                requests = Long.parseLong(line.substring("requests:".length(), line.indexOf('|')));
+            } else if (line.startsWith("latency.count:")) {
+                latencies = Long.parseLong(line.substring("latency.count:".length(), line.indexOf('|')));
+            }
+        }
+        assertThat((double) requests, closeTo(100000, 2500));
+        assertThat((double) latencies, closeTo(100000, 2500));
+    }
+
+    @Test(timeout=5000L) public void
+    sends_aggregated_timer_summary() throws Exception {
+
+        final NonBlockingStatsDClient aggregating_client = NonBlockingStatsDClient.builder()
+                .prefix("my.prefix")
+                .hostname("localhost")
+                .port(STATSD_SERVER_PORT)
+                .aggregateHistograms(1, TimeUnit.HOURS)
+                .build();
+        aggregating_client.recordExecutionTime("mytime", 10, "foo:bar");
+        aggregating_client.recordExecutionTime("mytime", 12, "foo:bar");
+        aggregating_client.recordExecutionTime("mytime", 11, "foo:bar");
+        aggregating_client.stop();
+        server.waitForMessage();
+
+        assertThat(server.messagesReceived(), containsInAnyOrder(
+                "my.prefix.mytime.count:3|g|#foo:bar",
+                "my.prefix.mytime.min:10|g|#foo:bar",
+                "my.prefix.mytime.max:12|g|#foo:bar",
+                "my.prefix.mytime.p50:11.5|g|#foo:bar",
+                "my.prefix.mytime.p95:12|g|#foo:bar",
+                "my.prefix.mytime.p99:12|g|#foo:bar"));
+    }
+
+    @Test(timeout=5000L) public void
+    sends_bound_counter_to_statsd() throws Exception {
+
+        final NonBlockingStatsDClient tagged_client = new NonBlockingStatsDClient("my.prefix", "localhost", STATSD_SERVER_PORT, new String[] {"instance:foo", "app:bar"});
+        final StatsDCounter counter = tagged_client.counter("mycount", "foo:bar", "baz");
+        counter.count(24);
+        server.waitForMessage();
+
+        assertThat(server.messagesReceived(), contains("my.prefix.mycount:24|c|#app:bar,instance:foo,baz,foo:bar"));
+    }
+
+    @Test(timeout=5000L) public void
+    sends_bound_timer_to_statsd() throws Exception {
+
+        final StatsDTimer timer = client.timer("mytime");
+        timer.record(123);
+        server.waitForMessage();
+
+        assertThat(server.messagesReceived(), contains("my.prefix.mytime:123|ms"));
+    }
+
+    @Test(timeout=5000L) public void
+    sends_through_tuned_ring_buffer() throws Exception {
+
+        final NonBlockingStatsDClient tuned_client = NonBlockingStatsDClient.builder()
+                .prefix("my.prefix")
+                .hostname("localhost")
+                .port(STATSD_SERVER_PORT)
+                .ringBufferSize(1024)
+                .waitStrategy(new YieldingWaitStrategy())
+                .producerType(ProducerType.SINGLE)
+                .packetSize(512)
+                .build();
+        tuned_client.count("mycount", 24);
+        server.waitForMessage();
+        tuned_client.stop();
+
+        assertThat(server.messagesReceived(), contains("my.prefix.mycount:24|c"));
+    }
+
+    @Test(timeout=5000L) public void
+    stops_the_shards_it_started_when_a_later_one_fails_to_start() throws Exception {
+
+        final int before = disruptorThreads();
+        for (int i = 0; i < 5; i++) {
+            try {
+                NonBlockingStatsDClient.builder()
+                        .destination("localhost", STATSD_SERVER_PORT)
+                        .destination("statsd.invalid", STATSD_SERVER_PORT)
+                        .resolver(hostname -> {
+                            if (hostname.endsWith(".invalid")) {
+                                throw new UnknownHostException(hostname);
+                            }
+                            return InetAddress.getLoopbackAddress();
+                        })
+                        .directSend(true)
+                        .build();
+                fail("expected the second destination to fail");
+            } catch (StatsDClientException expected) {
+            }
+        }
+        while (disruptorThreads() > before) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static int disruptorThreads() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive() && thread.getName().startsWith("StatsD-disruptor-")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test(expected = IllegalArgumentException.class) public void
+    rejects_a_single_producer_ring_the_scheduler_publishes_to() throws Exception {
+
+        NonBlockingStatsDClient.builder()
+                .hostname("localhost")
+                .port(STATSD_SERVER_PORT)
+                .producerType(ProducerType.SINGLE)
+                .aggregateCounters(1, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    @Test(expected = IllegalArgumentException.class) public void
+    rejects_ring_buffer_size_not_power_of_two() throws Exception {
+
+        NonBlockingStatsDClient.builder().ringBufferSize(1000);
+    }
+
+    @Test(timeout=5000L) public void
+    sends_batched_lines_from_striped_producers() throws Exception {
+
+        final NonBlockingStatsDClient striped_client = NonBlockingStatsDClient.builder()
+                .prefix("my.prefix")
+                .hostname("localhost")
+                .port(STATSD_SERVER_PORT)
+                .stripedProducers(4, 10, TimeUnit.MILLISECONDS)
+                .build();
+        striped_client.count("mycount", 24);
+        striped_client.recordGaugeValue("mygauge", 0.423, "foo:bar");
+        striped_client.recordExecutionTime("mytime", 123);
+        server.waitForMessage();
+        striped_client.stop();
+
+        assertThat(server.messagesReceived(), contains(
+                "my.prefix.mycount:24|c",
+                "my.prefix.mygauge:0.423|g|#foo:bar",
+                "my.prefix.mytime:123|ms"));
+    }
+
+    @Test(timeout=5000L) public void
+    keeps_the_gauges_of_a_thread_in_order_across_stripes() throws Exception {
+
+        final InMemoryTransport transport = new InMemoryTransport();
+        final NonBlockingStatsDClient striped_client = NonBlockingStatsDClient.builder()
+                .transport(transport)
+                .overflowPolicy(OverflowPolicy.BLOCK)
+                .blockTimeout(1, TimeUnit.SECONDS)
+                .stripedProducers(4, 1, TimeUnit.MILLISECONDS)
+                .build();
+        final Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final String aspect = "gauge" + t;
+            threads[t] = new Thread(() -> {
+                for (int i = 1; i <= 2000; i++) {
+                    striped_client.gauge(aspect, i);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        striped_client.stop();
+
+        final Map<String, Integer> last = new HashMap<>();
+        for (String line : transport.lines()) {
+            final String aspect = line.substring(0, line.indexOf(':'));
+            final int value = Integer.parseInt(line.substring(line.indexOf(':') + 1, line.indexOf('|')));
+            assertThat(value, greaterThan(last.getOrDefault(aspect, 0)));
+            last.put(aspect, value);
+        }
+        assertThat(last.size(), equalTo(threads.length));
+        assertThat(new HashSet<>(last.values()), contains(2000));
+    }
+
+    @Test(timeout=5000L) public void
+    sends_through_connected_channel_with_direct_buffer() throws Exception {
+
+        final NonBlockingStatsDClient direct_client = NonBlockingStatsDClient.builder()
+                .prefix("my.prefix")
+                .hostname("localhost")
+                .port(STATSD_SERVER_PORT)
+                .directSend(true)
+                .build();
+        direct_client.count("mycount", 24, "foo:bar", "baz");
+        server.waitForMessage();
+        direct_client.stop();
+
+        assertThat(server.messagesReceived(), contains("my.prefix.mycount:24|c|#baz,foo:bar"));
+    }
+
+    @Test(timeout=5000L) public void
+    splits_oversized_event_on_line_boundaries() throws Exception {
+
+        final NonBlockingStatsDClient small_packet_client = NonBlockingStatsDClient.builder()
+                .hostname("localhost")
+                .port(STATSD_SERVER_PORT)
+                .errorHandler(mockErrorHandler)
+                .packetSize(40)
+                .build();
+        final NonBlockingStatsDClient.Handler handler = small_packet_client.new Handler();
+        final NonBlockingStatsDClient.Event event = new NonBlockingStatsDClient.Event();
+        event.put("first.line:1|c\nsecond.line:2|c\n");
+        event.put("this.line.is.far.too.long.for.a.packet:3|c\nthird.line:3|c");
+
+        handler.onEvent(event, 0, true);
+        server.waitForMessage();
+        Thread.sleep(100);
+        small_packet_client.stop();
+
+        assertThat(server.messagesReceived(), contains("first.line:1|c", "second.line:2|c", "third.line:3|c"));
+        verify(mockErrorHandler).handle(any(IOException.class));
+    }
+
+    @Test(timeout=5000L) public void
+    sends_newline_framed_packets_over_unix_domain_socket() throws Exception {
+
+        assumeTrue(UnixSocketTransport.isSupported());
+        final Path path = Files.createTempDirectory("statsd").resolve("statsd.sock");
+        final ServerSocketChannel agent = (ServerSocketChannel) ServerSocketChannel.class
+                .getMethod("open", ProtocolFamily.class)
+                .invoke(null, StandardProtocolFamily.valueOf("UNIX"));
+        agent.bind(UnixSocketTransport.unixAddress(path.toString()));
+        try {
+            final NonBlockingStatsDClient unix_client = NonBlockingStatsDClient.builder()
+                    .prefix("my.prefix")
+                    .unixSocket(path.toString())
+                    .build();
+            unix_client.count("mycount", 24, "foo:bar", "baz");
+            unix_client.recordGaugeValue("mygauge", 423);
+            unix_client.stop();
+
+            final ByteBuffer received = ByteBuffer.allocate(1024);
+            try (SocketChannel connection = agent.accept()) {
+                while (connection.read(received) >= 0) {
+                    // read until the client closes its end
+                }
+            }
+            received.flip();
+            assertThat(StandardCharsets.UTF_8.decode(received).toString(),
+                    equalTo("my.prefix.mycount:24|c|#baz,foo:bar\nmy.prefix.mygauge:423|g\n"));
+        } finally {
+            agent.close();
+            Files.deleteIfExists(path);
+        }
+    }
+
+    @Test(timeout=5000L) public void
+    sends_packets_through_a_custom_transport() throws Exception {
+
+        final InMemoryTransport transport = new InMemoryTransport();
+        final NonBlockingStatsDClient custom_client = NonBlockingStatsDClient.builder()
+                .prefix("my.prefix")
+                .transport(transport)
+                .build();
+        custom_client.count("mycount", 24);
+        custom_client.recordGaugeValue("mygauge", 423);
+        custom_client.stop();
+
+        assertThat(transport.lines(), contains("my.prefix.mycount:24|c", "my.prefix.mygauge:423|g"));
+    }
+
+    @Test(timeout=5000L) public void
+    gives_up_flushing_a_stalled_sender_after_the_timeout() throws Exception {
+
+        final StalledTransport transport = new StalledTransport();
+        final NonBlockingStatsDClient stalled_client = NonBlockingStatsDClient.builder()
+                .transport(transport)
+                .flushTimeout(50, TimeUnit.MILLISECONDS)
+                .errorHandler(mockErrorHandler)
+                .build();
+        try {
+            stalled_client.count("first", 1);
+            transport.stalled.await();
+
+            assertThat(stalled_client.flush(50, TimeUnit.MILLISECONDS), equalTo(false));
+            stalled_client.flush();
+            verify(mockErrorHandler).handle(any(StatsDClientException.class));
+
+            transport.resume.countDown();
+            assertThat(stalled_client.flush(1, TimeUnit.SECONDS), equalTo(true));
+        } finally {
+            transport.resume.countDown();
+            stalled_client.stop();
+        }
+        assertThat(transport.lines(), contains("first:1|c"));
+    }
+
+    @Test(timeout=5000L) public void
+    reports_dropped_metrics_as_rate_limited_summaries() throws Exception {
+
+        final StalledTransport transport = new StalledTransport();
+        final NonBlockingStatsDClient overflowing_client = NonBlockingStatsDClient.builder()
+                .transport(transport)
+                .ringBufferSize(4)
+                .errorHandler(mockErrorHandler)
+                .build();
+        overflowing_client.count("first", 1);
+        transport.stalled.await();
+        for (int i = 0; i < 10; i++) {
+            overflowing_client.count("next", 1);
+        }
+        transport.resume.countDown();
+        overflowing_client.stop();
+
+        final ArgumentCaptor<Exception> reports = ArgumentCaptor.forClass(Exception.class);
+        verify(mockErrorHandler, times(2)).handle(reports.capture());
+        assertThat(reports.getAllValues().get(0).getMessage(), equalTo("Dropped 1 metrics because the ring buffer was full"));
+        assertThat(reports.getAllValues().get(1).getMessage(), equalTo("Dropped 6 metrics because the ring buffer was full"));
+    }
+
+    @Test(timeout=5000L) public void
+    skips_oldest_metrics_when_ring_buffer_is_full() throws Exception {
+
+        final StalledTransport transport = new StalledTransport();
+        final NonBlockingStatsDClient overflowing_client = NonBlockingStatsDClient.builder()
+                .transport(transport)
+                .ringBufferSize(4)
+                .overflowPolicy(OverflowPolicy.DROP_OLDEST)
+                .blockTimeout(1, TimeUnit.SECONDS)
+                .errorHandler(mockErrorHandler)
+                .build();
+        overflowing_client.count("a", 1);
+        transport.stalled.await();
+        overflowing_client.count("b", 1);
+        overflowing_client.count("c", 1);
+        overflowing_client.count("d", 1);
+        transport.resumeLater();
+        overflowing_client.count("e", 1);
+        overflowing_client.stop();
+
+        assertThat(transport.lines(), contains("a:1|c", "c:1|c", "d:1|c", "e:1|c"));
+        verify(mockErrorHandler).handle(any(StatsDClientException.class));
+    }
+
+    @Test(timeout=5000L) public void
+    does_not_wait_on_a_stalled_sender_when_dropping_oldest_metrics() throws Exception {
+
+        final StalledTransport transport = new StalledTransport();
+        final NonBlockingStatsDClient overflowing_client = NonBlockingStatsDClient.builder()
+                .transport(transport)
+                .ringBufferSize(4)
+                .overflowPolicy(OverflowPolicy.DROP_OLDEST)
+                .blockTimeout(50, TimeUnit.MILLISECONDS)
+                .errorHandler(mockErrorHandler)
+                .build();
+        overflowing_client.count("a", 1);
+        transport.stalled.await();
+        final long start = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+            overflowing_client.count("next", 1);
+        }
+        final long elapsed = System.nanoTime() - start;
+        transport.resume.countDown();
+        overflowing_client.stop();
+
+        assertThat(elapsed < TimeUnit.MILLISECONDS.toNanos(1000), equalTo(true));
+        assertThat(transport.lines(), contains("a:1|c", "next:1|c", "next:1|c"));
+        assertThat(overflowing_client.getStats().getDropped(), equalTo(98L));
+    }
+
+    @Test(timeout=5000L) public void
+    blocks_until_ring_buffer_has_room() throws Exception {
+
+        final StalledTransport transport = new StalledTransport();
+        final NonBlockingStatsDClient overflowing_client = NonBlockingStatsDClient.builder()
+                .transport(transport)
+                .ringBufferSize(4)
+                .overflowPolicy(OverflowPolicy.BLOCK)
+                .blockTimeout(1, TimeUnit.SECONDS)
+                .errorHandler(mockErrorHandler)
+                .build();
+        overflowing_client.count("a", 1);
+        transport.stalled.await();
+        overflowing_client.count("b", 1);
+        overflowing_client.count("c", 1);
+        overflowing_client.count("d", 1);
+        transport.resumeLater();
+        overflowing_client.count("e", 1);
+        overflowing_client.stop();
+
+        assertThat(transport.lines(), contains("a:1|c", "b:1|c", "c:1|c", "d:1|c", "e:1|c"));
+        verify(mockErrorHandler, never()).handle(any(Exception.class));
+    }
+
+    @Test(timeout=5000L) public void
+    coalesces_counters_when_ring_buffer_is_full() throws Exception {
+
+        final StalledTransport transport = new StalledTransport();
+        final NonBlockingStatsDClient overflowing_client = NonBlockingStatsDClient.builder()
+                .prefix("my.prefix")
+                .transport(transport)
+                .ringBufferSize(4)
+                .overflowPolicy(OverflowPolicy.COALESCE)
+                .errorHandler(mockErrorHandler)
+                .build();
+        overflowing_client.count("mycount", 1);
+        transport.stalled.await();
+        for (int i = 0; i < 9; i++) {
+            overflowing_client.count("mycount", 1);
+        }
+        transport.resume.countDown();
+        while (transport.lines().size() < 4) {
+            Thread.sleep(10);
+        }
+        overflowing_client.stop();
+
+        assertThat(transport.lines(), contains("my.prefix.mycount:1|c", "my.prefix.mycount:1|c",
+                "my.prefix.mycount:1|c", "my.prefix.mycount:1|c", "my.prefix.mycount:6|c"));
+        verify(mockErrorHandler, never()).handle(any(Exception.class));
+    }
+
+    @Test(timeout=5000L) public void
+    counts_published_metrics_and_sent_packets() throws Exception {
+
+        final InMemoryTransport transport = new InMemoryTransport();
+        final NonBlockingStatsDClient counted_client = NonBlockingStatsDClient.builder()
+                .transport(transport)
+                .build();
+        counted_client.count("mycount", 24);
+        counted_client.recordGaugeValue("mygauge", 423);
+        counted_client.stop();
+
+        final StatsDClientStats stats = counted_client.getStats();
+        assertThat(stats.getPublished(), equalTo(2L));
+        assertThat(stats.getDropped(), equalTo(0L));
+        assertThat(stats.getRingBufferOccupancy(), equalTo(0L));
+        assertThat(stats.getPacketsSent(), equalTo((long) transport.packets().size()));
+        assertThat(stats.getBytesSent(), equalTo((long) String.join("\n", transport.packets()).length() - transport.packets().size() + 1));
+        assertThat(stats.getPartialSends(), equalTo(0L));
+    }
+
+    @Test(timeout=5000L) public void
+    exposes_stats_through_jmx() throws Exception {
+
+        final NonBlockingStatsDClient jmx_client = NonBlockingStatsDClient.builder()
+                .transport(new InMemoryTransport())
+                .jmx("test")
+                .build();
+        final ObjectName name = new ObjectName("io.galeb.statsd:name=test");
+        try {
+            jmx_client.count("mycount", 24);
+            final CompositeData stats = (CompositeData) ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Stats");
+            assertThat(stats.get("ringBufferSize"), equalTo(16384));
+        } finally {
+            jmx_client.stop();
+        }
+        assertThat(ManagementFactory.getPlatformMBeanServer().isRegistered(name), equalTo(false));
+    }
+
+    @Test(timeout=5000L) public void
+    emits_self_telemetry() throws Exception {
+
+        final NonBlockingStatsDClient telemetry_client = NonBlockingStatsDClient.builder()
+                .prefix("my.prefix")
+                .hostname("localhost")
+                .port(STATSD_SERVER_PORT)
+                .selfTelemetry(10, TimeUnit.MILLISECONDS)
+                .build();
+        server.waitForMessage();
+        telemetry_client.stop();
+
+        assertThat(server.messagesReceived().get(0), startsWith("my.prefix.statsd.client.ring.occupancy:"));
+    }
+
+    @Test(timeout=5000L) public void
+    sends_through_sharded_senders() throws Exception {
+
+        final NonBlockingStatsDClient sharded_client = NonBlockingStatsDClient.builder()
+                .prefix("my.prefix")
+                .hostname("localhost")
+                .port(STATSD_SERVER_PORT)
+                .senderShards(4)
+                .build();
+        for (int i = 0; i < 8; i++) {
+            sharded_client.count("mycount" + i, i);
+        }
+        sharded_client.stop();
+        while (server.messagesReceived().size() < 8) {
+            Thread.sleep(10);
+        }
+
+        assertThat(server.messagesReceived(), containsInAnyOrder(
+                "my.prefix.mycount0:0|c", "my.prefix.mycount1:1|c", "my.prefix.mycount2:2|c", "my.prefix.mycount3:3|c",
+                "my.prefix.mycount4:4|c", "my.prefix.mycount5:5|c", "my.prefix.mycount6:6|c", "my.prefix.mycount7:7|c"));
+        assertThat(sharded_client.getStats().getRingBufferSize(), equalTo(4 * 16384));
+    }
+
+    @Test(timeout=5000L) public void
+    fans_out_to_destinations_by_consistent_hash() throws Exception {
+
+        final DummyStatsDServer[] servers = new DummyStatsDServer[3];
+        final NonBlockingStatsDClient.Builder builder = NonBlockingStatsDClient.builder().prefix("my.prefix");
+        for (int i = 0; i < servers.length; i++) {
+            servers[i] = new DummyStatsDServer(STATSD_SERVER_PORT + 1 + i);
+            builder.destination("localhost", STATSD_SERVER_PORT + 1 + i);
+        }
+        final NonBlockingStatsDClient fanout_client = builder.build();
+        try {
+            for (int i = 0; i < 30; i++) {
+                fanout_client.count("mycount" + i, 1);
+                fanout_client.count("mycount" + i, 2);
+            }
+            fanout_client.stop();
+
+            final List<String> received = new ArrayList<>();
+            while (received.size() < 60) {
+                Thread.sleep(10);
+                received.clear();
+                for (DummyStatsDServer destination : servers) {
+                    received.addAll(destination.messagesReceived());
+                }
+            }
+            for (DummyStatsDServer destination : servers) {
+                assertThat(destination.messagesReceived().isEmpty(), equalTo(false));
+                for (String message : destination.messagesReceived()) {
+                    final String aspect = message.substring(0, message.indexOf(':'));
+                    assertThat(destination.messagesReceived(), hasItems(aspect + ":1|c", aspect + ":2|c"));
+                }
+            }
+        } finally {
+            for (DummyStatsDServer destination : servers) {
+                destination.close();
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class) public void
+    rejects_a_client_without_a_hostname() throws Exception {
+
+        NonBlockingStatsDClient.builder()
+                .port(STATSD_SERVER_PORT)
+                .lazyStart(true)
+                .build();
+    }
+
+    @Test(expected = StatsDClientException.class) public void
+    fails_to_start_a_legacy_client_without_a_hostname() throws Exception {
+
+        new NonBlockingStatsDClient("my.prefix", null, STATSD_SERVER_PORT);
+    }
+
+    @Test(timeout=5000L) public void
+    follows_address_changes_of_the_statsd_host() throws Exception {
+
+        /* The resolver only picks the address, so the two agents share a port on the IPv4 and IPv6 loopbacks */
+        final InetAddress first = InetAddress.getByName("127.0.0.1");
+        final InetAddress second = InetAddress.getByName("::1");
+        final DummyStatsDServer first_server = new DummyStatsDServer(new InetSocketAddress(first, STATSD_SERVER_PORT + 10));
+        final DummyStatsDServer second_server;
+        try {
+            second_server = new DummyStatsDServer(new InetSocketAddress(second, STATSD_SERVER_PORT + 10));
+        } catch (SocketException e) {
+            first_server.close();
+            assumeTrue("no IPv6 loopback", false);
+            return;
+        }
+        final AtomicReference<InetAddress> current = new AtomicReference<>(first);
+        final NonBlockingStatsDClient moving_client = NonBlockingStatsDClient.builder()
+                .prefix("my.prefix")
+                .hostname("statsd.invalid")
+                .port(STATSD_SERVER_PORT + 10)
+                .resolver(hostname -> current.get())
+                .dnsRefresh(10, TimeUnit.MILLISECONDS)
+                .errorHandler(mockErrorHandler)
+                .build();
+        try {
+            moving_client.count("before", 1);
+            first_server.waitForMessage();
+            current.set(second);
+            while (second_server.messagesReceived().isEmpty()) {
+                moving_client.count("after", 1);
+                Thread.sleep(10);
+            }
+
+            assertThat(first_server.messagesReceived().get(0), equalTo("my.prefix.before:1|c"));
+            assertThat(second_server.messagesReceived().get(0), equalTo("my.prefix.after:1|c"));
+            verify(mockErrorHandler, never()).handle(any(Exception.class));
+        } finally {
+            moving_client.stop();
+            first_server.close();
+            second_server.close();
+        }
+    }
+
+    @Test(timeout=5000L) public void
+    sends_cached_tags() throws Exception {
+
+        final InMemoryTransport transport = new InMemoryTransport();
+        final NonBlockingStatsDClient cached_client = NonBlockingStatsDClient.builder()
+                .prefix("my.prefix")
+                .constantTags("app:bar")
+                .transport(transport)
+                .tagCache(16)
+                .build();
+        cached_client.count("mycount", 24, "foo:bar", "baz");
+        cached_client.count("mycount", 25, "foo:bar", "baz");
+        cached_client.count("mycount", 26);
+        cached_client.stop();
+
+        assertThat(transport.lines(), contains("my.prefix.mycount:24|c|#app:bar,baz,foo:bar",
+                "my.prefix.mycount:25|c|#app:bar,baz,foo:bar", "my.prefix.mycount:26|c|#app:bar"));
+        assertThat(cached_client.getStats().getTagCacheHits(), equalTo(1L));
+        assertThat(cached_client.getStats().getTagCacheMisses(), equalTo(1L));
+    }
+
+    @Test(timeout=5000L) public void
+    sends_long_and_double_values_through_fixed_arity_overloads() throws Exception {
+
+        final InMemoryTransport transport = new InMemoryTransport();
+        final NonBlockingStatsDClient overloaded_client = NonBlockingStatsDClient.builder()
+                .prefix("my.prefix")
+                .constantTags("app:bar")
+                .transport(transport)
+                .build();
+        overloaded_client.count("bytes", 5000000000L);
+        overloaded_client.count("bytes", 5000000000L, "foo:bar");
+        overloaded_client.increment("requests");
+        overloaded_client.decrement("requests", "foo:bar");
+        overloaded_client.gauge("free", 6000000000L);
+        overloaded_client.gauge("load", 0.5, "foo:bar");
+        overloaded_client.time("latency", 0.25);
+        overloaded_client.time("latency", 12L, "foo:bar");
+        overloaded_client.histogram("size", 7000000000L, "foo:bar", "baz");
+        overloaded_client.histogram("size", 1.5);
+        overloaded_client.stop();
+
+        assertThat(transport.lines(), contains(
+                "my.prefix.bytes:5000000000|c|#app:bar",
+                "my.prefix.bytes:5000000000|c|#app:bar,foo:bar",
+                "my.prefix.requests:1|c|#app:bar",
+                "my.prefix.requests:-1|c|#app:bar,foo:bar",
+                "my.prefix.free:6000000000|g|#app:bar",
+                "my.prefix.load:0.5|g|#app:bar,foo:bar",
+                "my.prefix.latency:0.25|ms|#app:bar",
+                "my.prefix.latency:12|ms|#app:bar,foo:bar",
+                "my.prefix.size:7000000000|h|#app:bar,baz,foo:bar",
+                "my.prefix.size:1.5|h|#app:bar"));
+    }
+
+    @Test(timeout=5000L) public void
+    lingers_across_batches_until_flushed() throws Exception {
+
+        final InMemoryTransport transport = new InMemoryTransport();
+        final NonBlockingStatsDClient lingering_client = NonBlockingStatsDClient.builder()
+                .prefix("my.prefix")
+                .transport(transport)
+                .linger(1, TimeUnit.HOURS)
+                .build();
+        try {
+            lingering_client.count("first", 1);
+            Thread.sleep(20L);
+            lingering_client.count("second", 2);
+            Thread.sleep(20L);
+            lingering_client.count("third", 3);
+            Thread.sleep(20L);
+            assertThat(transport.packets().size(), equalTo(0));
+
+            lingering_client.flush();
+
+            assertThat(transport.packets().size(), equalTo(1));
+            assertThat(transport.lines(), contains("my.prefix.first:1|c", "my.prefix.second:2|c", "my.prefix.third:3|c"));
+        } finally {
+            lingering_client.stop();
+        }
+    }
+
+    @Test(timeout=5000L) public void
+    sends_lingering_packets_after_the_max_delay() throws Exception {
+
+        final InMemoryTransport transport = new InMemoryTransport();
+        final NonBlockingStatsDClient lingering_client = NonBlockingStatsDClient.builder()
+                .prefix("my.prefix")
+                .transport(transport)
+                .linger(20, TimeUnit.MILLISECONDS)
+                .build();
+        try {
+            lingering_client.count("mycount", 24);
+            while (transport.packets().isEmpty()) {
+                Thread.sleep(5L);
+            }
+
+            assertThat(transport.lines(), contains("my.prefix.mycount:24|c"));
+        } finally {
+            lingering_client.stop();
+        }
+    }
+
+    @Test(timeout=5000L) public void
+    shares_one_sender_between_clients_on_a_runtime() throws Exception {
+
+        final InMemoryTransport transport = new InMemoryTransport();
+        final StatsDRuntime runtime = NonBlockingStatsDClient.builder()
+                .transport(transport)
+                .buildRuntime();
+        try {
+            final NonBlockingStatsDClient db_client = runtime.client("db", "app:bar");
+            final NonBlockingStatsDClient web_client = NonBlockingStatsDClient.builder()
+                    .runtime(runtime)
+                    .prefix("web")
+                    .aggregateCounters(1, TimeUnit.HOURS)
+                    .build();
+            db_client.count("queries", 3);
+            web_client.count("requests", 1);
+            web_client.count("requests", 2);
+            db_client.stop();
+            web_client.stop();
+
+            assertThat(transport.lines(), containsInAnyOrder("db.queries:3|c|#app:bar", "web.requests:3|c"));
+            assertThat(db_client.getStats().getPublished(), equalTo(1L));
+            assertThat(web_client.getStats().getPublished(), equalTo(1L));
+
+            final NonBlockingStatsDClient late_client = runtime.client("late");
+            late_client.count("mycount", 1);
+            late_client.stop();
+
+            assertThat(transport.lines(), hasItems("late.mycount:1|c"));
+            assertThat(runtime.getStats().getPacketsSent(), equalTo((long) transport.packets().size()));
+        } finally {
+            runtime.stop();
+        }
+    }
+
+    @Test(timeout=5000L, expected = IllegalArgumentException.class) public void
+    rejects_stripes_on_a_runtime_with_destinations() throws Exception {
+
+        final StatsDRuntime runtime = NonBlockingStatsDClient.builder()
+                .destination("localhost", STATSD_SERVER_PORT + 1)
+                .destination("localhost", STATSD_SERVER_PORT + 2)
+                .buildRuntime();
+        try {
+            NonBlockingStatsDClient.builder()
+                    .runtime(runtime)
+                    .stripedProducers(4, 1, TimeUnit.MILLISECONDS)
+                    .build();
+        } finally {
+            runtime.stop();
+        }
+    }
+
+    @Test(timeout=5000L) public void
+    starts_a_lazy_client_on_the_first_metric() throws Exception {
+
+        final AtomicInteger lookups = new AtomicInteger();
+        final NonBlockingStatsDClient lazy_client = NonBlockingStatsDClient.builder()
+                .prefix("my.prefix")
+                .hostname("localhost")
+                .port(STATSD_SERVER_PORT)
+                .resolver(hostname -> {
+                    lookups.incrementAndGet();
+                    return InetAddress.getByName(hostname);
+                })
+                .lazyStart(true)
+                .build();
+        try {
+            assertThat(lookups.get(), equalTo(0));
+            assertThat(lazy_client.getStats().getRingBufferSize(), equalTo(0));
+
+            lazy_client.count("mycount", 24);
+            server.waitForMessage();
+
+            assertThat(server.messagesReceived(), contains("my.prefix.mycount:24|c"));
+            assertThat(lookups.get(), equalTo(1));
+        } finally {
+            lazy_client.stop();
+        }
+    }
+
+    @Test(timeout=5000L) public void
+    reports_lazy_start_failures_to_the_error_handler() throws Exception {
+
+        final NonBlockingStatsDClient lazy_client = NonBlockingStatsDClient.builder()
+                .hostname("statsd.invalid")
+                .port(STATSD_SERVER_PORT)
+                .resolver(hostname -> {
+                    throw new SecurityException("lookup of " + hostname + " denied");
+                })
+                .errorHandler(mockErrorHandler)
+                .lazyStart(true)
+                .build();
+        try {
+            lazy_client.count("mycount", 24);
+            lazy_client.count("mycount", 25);
+
+            final ArgumentCaptor<Exception> reports = ArgumentCaptor.forClass(Exception.class);
+            verify(mockErrorHandler, times(2)).handle(reports.capture());
+            assertThat(reports.getAllValues().get(0).getMessage(), equalTo("Failed to start StatsD client"));
+            assertThat(reports.getAllValues().get(1).getMessage(), equalTo("Dropped 1 metrics because the StatsD client could not start"));
+            assertThat(lazy_client.getStats().getDropped(), equalTo(2L));
+        } finally {
+            lazy_client.stop();
+        }
+    }
+
+    @Test(timeout=5000L) public void
+    leaves_a_given_transport_open_when_a_lazy_start_fails() throws Exception {
+
+        final AtomicInteger closes = new AtomicInteger();
+        final NonBlockingStatsDClient lazy_client = NonBlockingStatsDClient.builder()
+                .transport(new Transport() {
+                    @Override
+                    public void send(ByteBuffer packet) {
+                    }
+
+                    @Override
+                    public void close() {
+                        closes.incrementAndGet();
+                    }
+                })
+                .threadFactory(runnable -> {
+                    throw new IllegalStateException("no threads");
+                })
+                .errorHandler(mockErrorHandler)
+                .lazyStart(true)
+                .build();
+        try {
+            lazy_client.count("mycount", 24);
+
+            assertThat(lazy_client.getStats().getDropped(), equalTo(1L));
+            assertThat(closes.get(), equalTo(0));
+        } finally {
+            lazy_client.stop();
+        }
+        assertThat(closes.get(), equalTo(1));
+    }
+
+    @Test(timeout=5000L) public void
+    sends_packets_on_the_caller_thread() throws Exception {
+
+        final InMemoryTransport transport = new InMemoryTransport();
+        final NonBlockingStatsDClient caller_client = NonBlockingStatsDClient.builder()
+                .prefix("my.prefix")
+                .transport(transport)
+                .packetSize(50)
+                .sendOnCallerThread(0, TimeUnit.MILLISECONDS)
+                .build();
+        try {
+            caller_client.count("first", 1);
+            caller_client.count("second", 2);
+            assertThat(transport.packets().size(), equalTo(0));
+
+            caller_client.count("third", 3);
+            assertThat(transport.packets(), contains("my.prefix.first:1|c\nmy.prefix.second:2|c"));
+
+            caller_client.flush();
+            assertThat(transport.lines(), contains("my.prefix.first:1|c", "my.prefix.second:2|c", "my.prefix.third:3|c"));
+            assertThat(caller_client.getStats().getRingBufferSize(), equalTo(0));
+            assertThat(caller_client.getStats().getPacketsSent(), equalTo(2L));
+        } finally {
+            caller_client.stop();
+        }
+    }
+
+    @Test(timeout=5000L) public void
+    counts_metrics_the_transport_dropped() throws Exception {
+
+        final NonBlockingStatsDClient dropping_client = NonBlockingStatsDClient.builder()
+                .transport(new Transport() {
+                    @Override
+                    public void send(ByteBuffer packet) {
+                        packet.position(packet.limit());
+                    }
+
+                    @Override
+                    public long dropped() {
+                        return 7L;
+                    }
+
+                    @Override
+                    public void close() {
+                    }
+                })
+                .build();
+        try {
+            assertThat(dropping_client.getStats().getDropped(), equalTo(7L));
+        } finally {
+            dropping_client.stop();
+        }
+    }
+
+    @Test(timeout=5000L) public void
+    reports_caller_thread_failures_to_a_handler_that_records_metrics() throws Exception {
+
+        final InMemoryTransport delivered = new InMemoryTransport();
+        final AtomicInteger sends = new AtomicInteger();
+        final AtomicReference<StatsDClient> client = new AtomicReference<>();
+        final NonBlockingStatsDClient caller_client = NonBlockingStatsDClient.builder()
+                .prefix("my.prefix")
+                .transport(new Transport() {
+                    @Override
+                    public void send(ByteBuffer packet) {
+                        if (sends.incrementAndGet() == 1) {
+                            throw new IllegalStateException("transport failed");
+                        }
+                        delivered.send(packet);
+                    }
+
+                    @Override
+                    public void close() {
+                    }
+                })
+                .packetSize(50)
+                .errorHandler(e -> client.get().count("errors", 1))
+                .sendOnCallerThread(0, TimeUnit.MILLISECONDS)
+                .build();
+        client.set(caller_client);
+        try {
+            caller_client.count("first", 1);
+            caller_client.count("second", 2);
+            caller_client.count("third", 3);
+            caller_client.flush();
+        } finally {
+            caller_client.stop();
+        }
+
+        /* One report for the failure, one for the two lines it dropped */
+        assertThat(delivered.lines(), contains("my.prefix.third:3|c", "my.prefix.errors:1|c", "my.prefix.errors:1|c"));
+    }
+
+    @Test(timeout=5000L) public void
+    keeps_transport_failures_on_the_caller_thread_away_from_the_caller() throws Exception {
+
+        final InMemoryTransport delivered = new InMemoryTransport();
+        final AtomicInteger sends = new AtomicInteger();
+        final NonBlockingStatsDClient caller_client = NonBlockingStatsDClient.builder()
+                .prefix("my.prefix")
+                .transport(new Transport() {
+                    @Override
+                    public void send(ByteBuffer packet) {
+                        if (sends.incrementAndGet() == 1) {
+                            throw new IllegalStateException("transport failed");
+                        }
+                        delivered.send(packet);
+                    }
+
+                    @Override
+                    public void close() {
+                    }
+                })
+                .packetSize(50)
+                .errorHandler(mockErrorHandler)
+                .sendOnCallerThread(0, TimeUnit.MILLISECONDS)
+                .build();
+        try {
+            caller_client.count("first", 1);
+            caller_client.count("second", 2);
+            caller_client.count("third", 3);
+
+            assertThat(caller_client.getStats().getDropped(), equalTo(2L));
+        } finally {
+            caller_client.stop();
+        }
+
+        final ArgumentCaptor<Exception> reports = ArgumentCaptor.forClass(Exception.class);
+        verify(mockErrorHandler, times(2)).handle(reports.capture());
+        assertThat(reports.getAllValues().get(0).getMessage(), equalTo("transport failed"));
+        assertThat(reports.getAllValues().get(1).getMessage(), equalTo("Dropped 2 metrics because the transport failed to send them"));
+        assertThat(delivered.lines(), contains("my.prefix.third:3|c"));
+    }
+
+    @Test(timeout=5000L) public void
+    packs_consecutive_values_of_the_same_timer_or_histogram() throws Exception {
+
+        final InMemoryTransport transport = new InMemoryTransport();
+        final NonBlockingStatsDClient packing_client = NonBlockingStatsDClient.builder()
+                .prefix("my.prefix")
+                .transport(transport)
+                .linger(1, TimeUnit.HOURS)
+                .packValues(true)
+                .build();
+        try {
+            packing_client.time("latency", 1L, "foo:bar");
+            packing_client.time("latency", 2L, "foo:bar");
+            packing_client.histogram("size", 3L);
+            packing_client.histogram("size", 4.5);
+            packing_client.count("mycount", 1L);
+            packing_client.count("mycount", 1L);
+            packing_client.time("latency", 5L, "foo:bar");
+            packing_client.time("latency", 6L, "baz");
+            packing_client.flush();
+
+            assertThat(transport.lines(), contains(
+                    "my.prefix.latency:1:2|ms|#foo:bar",
+                    "my.prefix.size:3:4.5|h",
+                    "my.prefix.mycount:1|c",
+                    "my.prefix.mycount:1|c",
+                    "my.prefix.latency:5|ms|#foo:bar",
+                    "my.prefix.latency:6|ms|#baz"));
+        } finally {
+            packing_client.stop();
+        }
+    }
+
+    @Test(timeout=5000L) public void
+    starts_a_new_packet_when_a_packed_line_fills_one() throws Exception {
+
+        final InMemoryTransport transport = new InMemoryTransport();
+        final NonBlockingStatsDClient packing_client = NonBlockingStatsDClient.builder()
+                .transport(transport)
+                .packetSize(20)
+                .linger(1, TimeUnit.HOURS)
+                .packValues(true)
+                .build();
+        try {
+            for (long value = 10; value < 17; value++) {
+                packing_client.histogram("size", value);
+            }
+            packing_client.flush();
+
+            assertThat(transport.packets(), contains("size:10:11:12:13|h", "size:14:15:16|h"));
+        } finally {
+            packing_client.stop();
+        }
+    }
+
+    @Test(timeout=5000L) public void
+    sends_the_last_value_of_coalesced_gauges() throws Exception {
+
+        final InMemoryTransport transport = new InMemoryTransport();
+        final NonBlockingStatsDClient coalescing_client = NonBlockingStatsDClient.builder()
+                .prefix("my.prefix")
+                .transport(transport)
+                .coalesceGauges(1, TimeUnit.HOURS)
+                .build();
+        try {
+            coalescing_client.gauge("pool", 1L);
+            coalescing_client.recordGaugeValue("pool", 2);
+            coalescing_client.gauge("pool", 3L);
+            coalescing_client.gauge("load", 0.5, "foo:bar");
+            coalescing_client.recordGaugeValue("load", 0.25, "foo:bar");
+            coalescing_client.gauge("mixed", 3L);
+            coalescing_client.gauge("mixed", 2.5);
+            coalescing_client.flush();
+
+            assertThat(transport.lines(), containsInAnyOrder(
+                    "my.prefix.pool:3|g", "my.prefix.load:0.25|g|#foo:bar", "my.prefix.mixed:2.5|g"));
+            assertThat(coalescing_client.getStats().getPublished(), equalTo(3L));
+
+            transport.clear();
+            coalescing_client.flush();
+            assertThat(transport.lines().size(), equalTo(0));
+
+            coalescing_client.gauge("pool", 4L);
+        } finally {
+            coalescing_client.stop();
+        }
+
+        assertThat(transport.lines(), contains("my.prefix.pool:4|g"));
+    }
+
+    @Test(timeout=5000L) public void
+    keeps_the_last_gauge_value_when_long_and_double_sets_race() throws Exception {
+
+        final InMemoryTransport transport = new InMemoryTransport();
+        final NonBlockingStatsDClient coalescing_client = NonBlockingStatsDClient.builder()
+                .prefix("my.prefix")
+                .transport(transport)
+                .coalesceGauges(1, TimeUnit.HOURS)
+                .build();
+        try {
+            for (int round = 0; round < 200; round++) {
+                final String aspect = "race" + round;
+                final CountDownLatch go = new CountDownLatch(1);
+                final AtomicBoolean racing = new AtomicBoolean(true);
+                final Thread floating = new Thread(() -> {
+                    try {
+                        go.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    coalescing_client.gauge(aspect, 2.5);
+                });
+                final Thread flushing = new Thread(() -> {
+                    while (racing.get()) {
+                        coalescing_client.flush();
+                    }
+                });
+                floating.start();
+                flushing.start();
+                go.countDown();
+                coalescing_client.gauge(aspect, 3L);
+                floating.join();
+                coalescing_client.gauge(aspect, 4L);
+                racing.set(false);
+                flushing.join();
+                coalescing_client.flush();
+
+                /* Whatever the flushes in between sent, the last write is sent last */
+                final List<String> lines = transport.lines();
+                assertThat(lines.get(lines.size() - 1), equalTo("my.prefix." + aspect + ":4|g"));
+                for (String line : lines) {
+                    assertThat(line, anyOf(equalTo("my.prefix." + aspect + ":3|g"), equalTo("my.prefix." + aspect + ":2.5|g"),
+                            equalTo("my.prefix." + aspect + ":4|g")));
+                }
+                transport.clear();
+            }
+        } finally {
+            coalescing_client.stop();
+        }
+    }
+
+    @Test(timeout=5000L) public void
+    flushes_the_caller_thread_packet_after_a_sub_millisecond_delay() throws Exception {
+
+        final InMemoryTransport transport = new InMemoryTransport();
+        final NonBlockingStatsDClient caller_client = NonBlockingStatsDClient.builder()
+                .prefix("my.prefix")
+                .transport(transport)
+                .sendOnCallerThread(500, TimeUnit.MICROSECONDS)
+                .build();
+        try {
+            caller_client.count("mycount", 24);
+            while (transport.packets().isEmpty()) {
+                Thread.sleep(5L);
+            }
+
+            assertThat(transport.lines(), contains("my.prefix.mycount:24|c"));
+        } finally {
+            caller_client.stop();
+        }
+    }
+
+    /* Holds the sender thread in its first send until resumed, so tests can fill the ring */
+    private static final class StalledTransport implements Transport {
+
+        final CountDownLatch stalled = new CountDownLatch(1);
+        final CountDownLatch resume = new CountDownLatch(1);
+        private final InMemoryTransport delegate = new InMemoryTransport();
+
+        @Override
+        public void send(ByteBuffer packet) throws IOException {
+            stalled.countDown();
+            try {
+                resume.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            delegate.send(packet);
+        }
+
+        void resumeLater() {
+            new Thread(() -> {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException ignored) {
+                    // resume anyway
+                }
+                resume.countDown();
+            }).start();
+        }
+
+        List<String> lines() {
+            return delegate.lines();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
 }
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2017-2017 Globo.com
+ * All rights reserved.
+ *
+ * This source is subject to the Apache License, Version 2.0.
+ * Please see the LICENSE file for more information.
+ *
+ * Authors: See AUTHORS file
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.galeb.statsd;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+
+public class StatsDClientTest {
+
+    @Test public void
+    routes_added_methods_through_the_original_ones() {
+        RecordingClient client = new RecordingClient();
+
+        client.count("a", 5L, 0.5, "x");
+        client.increment("b", "y");
+        client.decrement("c");
+        client.gauge("d", 7L);
+        client.time("e", 2.6, 0.1);
+        client.histogram("f", 3L, "z");
+        client.counter("g", "t").increment();
+        client.timer("h").record(4L);
+        client.flush();
+
+        assertThat(client.calls, contains(
+                "count a 5 [x]",
+                "increment b [y]",
+                "decrement c []",
+                "gauge d 7 []",
+                "time e 3 []",
+                "histogram f 3 [z]",
+                "incrementCounter g [t]",
+                "time h 4 []"));
+    }
+
+    @Test public void
+    splits_long_counts_into_int_counts() {
+        RecordingClient client = new RecordingClient();
+
+        client.count("a", Integer.MAX_VALUE + 2L);
+
+        assertThat(client.calls, contains(
+                "count a " + Integer.MAX_VALUE + " []",
+                "count a 2 []"));
+    }
+
+    @Test public void
+    keeps_int_gauges_and_histograms_on_the_int_methods() {
+        RecordingClient client = new RecordingClient();
+
+        client.gauge("x", 5, "t");
+        client.histogram("h", 5);
+        client.recordGaugeValue("y", 1L << 40);
+
+        assertThat(client.calls, contains(
+                "gauge x 5 [t]",
+                "histogram h 5 []",
+                "gauge y 1.099511627776E12 []"));
+    }
+
+    /* Implements only the methods the interface started with */
+    private static final class RecordingClient implements StatsDClient {
+
+        final List<String> calls = new ArrayList<>();
+
+        private void record(String method, String aspect, Object value, String[] tags) {
+            calls.add(method + " " + aspect + (value == null ? "" : " " + value) + " " + Arrays.toString(tags));
+        }
+
+        @Override public void stop() { }
+
+        @Override public void count(String aspect, int delta, String... tags) { record("count", aspect, delta, tags); }
+
+        @Override public void incrementCounter(String aspect, String... tags) { record("incrementCounter", aspect, null, tags); }
+
+        @Override public void increment(String aspect, String... tags) { record("increment", aspect, null, tags); }
+
+        @Override public void decrementCounter(String aspect, String... tags) { record("decrementCounter", aspect, null, tags); }
+
+        @Override public void decrement(String aspect, String... tags) { record("decrement", aspect, null, tags); }
+
+        @Override public void recordGaugeValue(String aspect, double value, String... tags) { record("gauge", aspect, value, tags); }
+
+        @Override public void gauge(String aspect, double value, String... tags) { record("gauge", aspect, value, tags); }
+
+        @Override public void recordGaugeValue(String aspect, int value, String... tags) { record("gauge", aspect, value, tags); }
+
+        @Override public void gauge(String aspect, int value, String... tags) { record("gauge", aspect, value, tags); }
+
+        @Override public void recordExecutionTime(String aspect, long timeInMs, String... tags) { record("time", aspect, timeInMs, tags); }
+
+        @Override public void time(String aspect, long value, String... tags) { record("time", aspect, value, tags); }
+
+        @Override public void recordHistogramValue(String aspect, double value, String... tags) { record("histogram", aspect, value, tags); }
+
+        @Override public void histogram(String aspect, double value, String... tags) { record("histogram", aspect, value, tags); }
+
+        @Override public void recordHistogramValue(String aspect, int value, String... tags) { record("histogram", aspect, value, tags); }
+
+        @Override public void histogram(String aspect, int value, String... tags) { record("histogram", aspect, value, tags); }
+    }
+
+}
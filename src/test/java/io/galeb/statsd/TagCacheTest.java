@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2017-2017 Globo.com
+ * All rights reserved.
+ *
+ * This source is subject to the Apache License, Version 2.0.
+ * Please see the LICENSE file for more information.
+ *
+ * Authors: See AUTHORS file
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.galeb.statsd;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+
+public class TagCacheTest {
+
+    @Test public void
+    finds_equal_tag_arrays() {
+        TagCache cache = new TagCache(4);
+        cache.put(new String[] { "foo:bar", "baz" }, new byte[] { 1 });
+
+        assertThat(cache.get(new String[] { "foo:bar", "baz" }), equalTo(new byte[] { 1 }));
+        assertThat(cache.get(new String[] { "baz", "foo:bar" }), nullValue());
+        assertThat(cache.hits(), equalTo(1L));
+        assertThat(cache.misses(), equalTo(1L));
+    }
+
+    @Test public void
+    keeps_its_own_copy_of_the_tags() {
+        TagCache cache = new TagCache(4);
+        String[] tags = { "foo:bar" };
+        cache.put(tags, new byte[] { 1 });
+        tags[0] = "changed";
+
+        assertThat(cache.get(new String[] { "foo:bar" }), notNullValue());
+    }
+
+    @Test public void
+    evicts_entries_not_read_since_the_last_sweep() {
+        TagCache cache = new TagCache(2);
+        cache.put(new String[] { "a" }, new byte[] { 1 });
+        cache.put(new String[] { "b" }, new byte[] { 2 });
+        cache.get(new String[] { "a" });
+        cache.put(new String[] { "c" }, new byte[] { 3 });
+
+        assertThat(cache.size(), equalTo(2));
+        assertThat(cache.get(new String[] { "a" }), notNullValue());
+        assertThat(cache.get(new String[] { "b" }), nullValue());
+        assertThat(cache.get(new String[] { "c" }), notNullValue());
+    }
+
+    @Test public void
+    evicts_an_entry_that_shares_its_bucket() {
+        TagCache cache = new TagCache(2);
+        /* "Aa" and "BB" have the same hash code */
+        cache.put(new String[] { "Aa" }, new byte[] { 1 });
+        cache.put(new String[] { "BB" }, new byte[] { 2 });
+        cache.get(new String[] { "BB" });
+        cache.put(new String[] { "c" }, new byte[] { 3 });
+
+        assertThat(cache.get(new String[] { "Aa" }), nullValue());
+        assertThat(cache.get(new String[] { "BB" }), equalTo(new byte[] { 2 }));
+        assertThat(cache.get(new String[] { "c" }), equalTo(new byte[] { 3 }));
+    }
+}
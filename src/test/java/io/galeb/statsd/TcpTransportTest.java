@@ -0,0 +1,318 @@
+/*
+ * Copyright (c) 2017-2017 Globo.com
+ * All rights reserved.
+ *
+ * This source is subject to the Apache License, Version 2.0.
+ * Please see the LICENSE file for more information.
+ *
+ * Authors: See AUTHORS file
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.galeb.statsd;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class TcpTransportTest {
+
+    @Test(timeout=5000L) public void
+    writes_newline_framed_packets_on_flush() throws Exception {
+
+        try (ServerSocketChannel agent = ServerSocketChannel.open()) {
+            agent.bind(new InetSocketAddress("localhost", 0));
+            final TcpTransport transport = new TcpTransport("localhost", agent.socket().getLocalPort());
+            transport.send(packet("foo:1|c"));
+            transport.send(packet("bar:2|g"));
+            flushUntilConnected(transport);
+
+            try (SocketChannel connection = agent.accept()) {
+                transport.close();
+                assertThat(readAll(connection), equalTo("foo:1|c\nbar:2|g\n"));
+            }
+        }
+    }
+
+    @Test(timeout=5000L) public void
+    keeps_packets_and_reconnects_when_the_agent_starts_late() throws Exception {
+
+        final int port;
+        try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+            probe.bind(new InetSocketAddress("localhost", 0));
+            port = probe.socket().getLocalPort();
+        }
+        final TcpTransport transport = new TcpTransport("localhost", port);
+        transport.send(packet("foo:1|c"));
+        for (int attempt = 0; attempt < 3; attempt++) {
+            try {
+                transport.flush();
+            } catch (IOException expected) {
+                // agent is still down
+            }
+            Thread.sleep(20);
+        }
+
+        try (ServerSocketChannel agent = ServerSocketChannel.open()) {
+            agent.bind(new InetSocketAddress("localhost", port));
+            Thread.sleep(250);
+            transport.send(packet("bar:2|g"));
+            flushUntilConnected(transport);
+
+            try (SocketChannel connection = agent.accept()) {
+                transport.close();
+                assertThat(readAll(connection), equalTo("foo:1|c\nbar:2|g\n"));
+            }
+        }
+    }
+
+    @Test(timeout=5000L) public void
+    drops_the_rest_of_a_half_sent_line_after_a_failed_write() throws Exception {
+
+        try (ServerSocketChannel agent = ServerSocketChannel.open()) {
+            agent.socket().setReceiveBufferSize(4096);
+            agent.bind(new InetSocketAddress("localhost", 0));
+            final TcpTransport transport = new TcpTransport("localhost", agent.socket().getLocalPort());
+            transport.send(packet(line(0)));
+            flushUntilConnected(transport);
+            final SocketChannel stalled = agent.accept();
+
+            /* The agent reads nothing: the socket fills up, a write stops inside a line and the buffer fills after it */
+            int next = 1;
+            try {
+                while (true) {
+                    transport.send(packet(line(next++)));
+                }
+            } catch (IOException full) {
+                // the transport buffer is full
+            }
+            /* Reset the connection: the next write fails without sending a byte */
+            stalled.socket().setSoLinger(true, 0);
+            stalled.close();
+            flushUntilFailed(transport);
+
+            agent.configureBlocking(false);
+            SocketChannel connection = null;
+            while (connection == null) {
+                try {
+                    transport.flush();
+                } catch (IOException retry) {
+                    // reconnecting
+                }
+                Thread.sleep(20);
+                connection = agent.accept();
+            }
+            connection.configureBlocking(true);
+            final SocketChannel reconnected = connection;
+            final ByteArrayOutputStream received = new ByteArrayOutputStream();
+            final Thread reader = new Thread(() -> {
+                final ByteBuffer chunk = ByteBuffer.allocate(8192);
+                try {
+                    while (reconnected.read(chunk) >= 0) {
+                        received.write(chunk.array(), 0, chunk.position());
+                        chunk.clear();
+                    }
+                } catch (IOException ignored) {
+                    // the test fails on the contents instead
+                }
+            });
+            reader.start();
+            flushUntilConnected(transport);
+            transport.close();
+            reader.join();
+            reconnected.close();
+
+            final String[] lines = new String(received.toByteArray(), StandardCharsets.UTF_8).split("\n");
+            assertThat(lines.length > 1, equalTo(true));
+            for (String line : lines) {
+                assertThat(line, line.matches("metric\\.(\\d+):\\1\\|c"), equalTo(true));
+            }
+        }
+    }
+
+    @Test(timeout=5000L) public void
+    reconnects_without_looking_the_host_up_again() throws Exception {
+
+        final int port;
+        try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+            probe.bind(new InetSocketAddress("localhost", 0));
+            port = probe.socket().getLocalPort();
+        }
+        final AtomicInteger lookups = new AtomicInteger();
+        final TcpTransport transport = new TcpTransport("statsd.invalid", port, TcpTransport.DEFAULT_BUFFER_SIZE, hostname -> {
+            lookups.incrementAndGet();
+            return InetAddress.getLoopbackAddress();
+        });
+        transport.send(packet("foo:1|c"));
+        for (int attempt = 0; attempt < 3; attempt++) {
+            try {
+                transport.flush();
+            } catch (IOException expected) {
+                // agent is down
+            }
+            Thread.sleep(150);
+        }
+
+        assertThat(lookups.get(), equalTo(1));
+        try {
+            transport.close();
+        } catch (IOException expected) {
+            // the packet never got out
+        }
+    }
+
+    @Test(timeout=5000L) public void
+    looks_a_host_that_did_not_resolve_up_again_on_reconnect() throws Exception {
+
+        try (ServerSocketChannel agent = ServerSocketChannel.open()) {
+            agent.bind(new InetSocketAddress("localhost", 0));
+            final AtomicInteger lookups = new AtomicInteger();
+            final TcpTransport transport = new TcpTransport("statsd.invalid", agent.socket().getLocalPort(),
+                    TcpTransport.DEFAULT_BUFFER_SIZE, hostname -> {
+                        if (lookups.incrementAndGet() == 1) {
+                            throw new UnknownHostException(hostname);
+                        }
+                        return InetAddress.getLoopbackAddress();
+                    });
+            transport.send(packet("foo:1|c"));
+            flushUntilConnected(transport);
+
+            try (SocketChannel connection = agent.accept()) {
+                transport.close();
+                assertThat(readAll(connection), equalTo("foo:1|c\n"));
+            }
+            assertThat(lookups.get(), equalTo(2));
+        }
+    }
+
+    @Test(timeout=5000L, expected = IOException.class) public void
+    reports_packets_still_buffered_when_closed_before_connecting() throws Exception {
+
+        final int port;
+        try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+            probe.bind(new InetSocketAddress("localhost", 0));
+            port = probe.socket().getLocalPort();
+        }
+        final TcpTransport transport = new TcpTransport("localhost", port);
+        transport.send(packet("foo:1|c"));
+
+        transport.close();
+    }
+
+    @Test(timeout=5000L) public void
+    counts_packets_that_do_not_fit_and_reports_them_once_per_backoff() throws Exception {
+
+        final int port;
+        try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+            probe.bind(new InetSocketAddress("localhost", 0));
+            port = probe.socket().getLocalPort();
+        }
+        final TcpTransport transport = new TcpTransport("localhost", port, 64);
+        int reports = 0;
+        for (int i = 0; i < 1000; i++) {
+            try {
+                transport.send(packet("foo:1|c\nbar:2|c"));
+            } catch (IOException e) {
+                if (e.getMessage() != null && e.getMessage().startsWith("Dropped")) {
+                    reports++;
+                }
+            }
+        }
+
+        assertThat(reports, equalTo(1));
+        assertThat(transport.dropped(), equalTo(2L * (1000 - 4)));
+        try {
+            transport.close();
+        } catch (IOException expected) {
+            // the buffered packets never got out
+        }
+        assertThat(transport.dropped(), equalTo(2000L));
+    }
+
+    @Test(timeout=10000L) public void
+    gives_up_on_buffered_packets_when_the_agent_does_not_read_on_close() throws Exception {
+
+        try (ServerSocketChannel agent = ServerSocketChannel.open()) {
+            agent.socket().setReceiveBufferSize(4096);
+            agent.bind(new InetSocketAddress("localhost", 0));
+            final TcpTransport transport = new TcpTransport("localhost", agent.socket().getLocalPort());
+            transport.send(packet(line(0)));
+            flushUntilConnected(transport);
+            try (SocketChannel stalled = agent.accept()) {
+                int next = 1;
+                try {
+                    while (true) {
+                        transport.send(packet(line(next++)));
+                    }
+                } catch (IOException full) {
+                    // the transport buffer is full
+                }
+
+                final long start = System.nanoTime();
+                try {
+                    transport.close();
+                } catch (IOException expected) {
+                    // the rest is dropped
+                }
+                assertThat(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5), equalTo(true));
+            }
+        }
+    }
+
+    private static String line(int n) {
+        return "metric." + n + ":" + n + "|c";
+    }
+
+    private static void flushUntilFailed(TcpTransport transport) throws Exception {
+        while (true) {
+            try {
+                transport.flush();
+            } catch (IOException expected) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static ByteBuffer packet(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void flushUntilConnected(TcpTransport transport) throws Exception {
+        while (true) {
+            try {
+                transport.flush();
+                return;
+            } catch (IOException retry) {
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    private static String readAll(SocketChannel connection) throws IOException {
+        final ByteBuffer received = ByteBuffer.allocate(1024);
+        while (connection.read(received) >= 0) {
+            // read until the transport closes its end
+        }
+        received.flip();
+        return StandardCharsets.UTF_8.decode(received).toString();
+    }
+}